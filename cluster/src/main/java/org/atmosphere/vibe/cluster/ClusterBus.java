@@ -0,0 +1,676 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.atmosphere.vibe.ClusteredServer;
+import org.atmosphere.vibe.internal.SharedScheduler;
+import org.atmosphere.vibe.platform.action.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A peer-to-peer message bus for {@link ClusteredServer} over TCP without any
+ * broker.
+ * <p>
+ * Every node listens on its own address and keeps a persistent connection to
+ * each of the other members, which are statically configured, reconnecting
+ * if it's lost. A message published by the server, which has already been
+ * executed with the server's own sockets, is serialized once and written to
+ * every other member as a length-prefixed frame. Frames queued for a member are written together by
+ * a gathering write so that a burst of messages costs a few system calls.
+ * All I/O is done in a single thread with a selector, and received messages
+ * are deserialized and passed to {@link ClusteredServer#messageAction()} on
+ * the shared workers in order of arrival per connection so that a slow
+ * transport doesn't hold up the I/O.
+ * <p>
+ * Messages are serialized by Java serialization as they carry actions.
+ * Connections from hosts other than members are refused, and a received
+ * message may only consist of arrays, primitive wrappers, {@code java.util}
+ * and {@code java.math} classes, classes of Vibe and classes allowed by
+ * {@link ClusterBus#allowClasses(String...)}. Still, members should be
+ * reachable only through a trusted network. The following options are
+ * configurable.
+ * <ul>
+ * <li>{@link ClusterBus#setReconnectDelay(int)}</li>
+ * <li>{@link ClusterBus#setMaxPendingFrames(int)}</li>
+ * <li>{@link ClusterBus#setMaxFrameLength(int)}</li>
+ * <li>{@link ClusterBus#allowClasses(String...)}</li>
+ * </ul>
+ * 
+ * @author Donghwan Kim
+ */
+public class ClusterBus implements Closeable {
+
+    // The maximum number of frames to be written by a gathering write
+    private static final int BATCH_SIZE = 64;
+    // Classes which received messages may consist of by default. A name
+    // ending with a dot stands for a package and its subpackages
+    private static final String[] DEFAULT_ALLOWED_CLASSES = {
+        "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Double", "java.lang.Enum",
+        "java.lang.Float", "java.lang.Integer", "java.lang.Long", "java.lang.Number", "java.lang.Object",
+        "java.lang.Short", "java.lang.String", "java.lang.invoke.SerializedLambda", "java.math.", "java.util.",
+        "org.atmosphere.vibe." };
+
+    private final Logger log = LoggerFactory.getLogger(ClusterBus.class);
+    private final ClusteredServer server;
+    private final InetSocketAddress address;
+    private final List<Peer> peers = new ArrayList<>();
+    // Peers having frames to be written by the I/O thread
+    private final Queue<Peer> flushes = new ConcurrentLinkedQueue<>();
+    // Inbound connections to read from again as their frames are delivered
+    private final Queue<Inbound> resumes = new ConcurrentLinkedQueue<>();
+    private final List<String> allowedClasses = new CopyOnWriteArrayList<>(DEFAULT_ALLOWED_CLASSES);
+    private final Executor workers = SharedScheduler.workers();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    private Selector selector;
+    private ServerSocketChannel acceptor;
+    private Thread thread;
+    private int reconnectDelay = 1000;
+    private int maxPendingFrames = 10000;
+    private int maxFrameLength = 1024 * 1024;
+
+    /**
+     * Creates a bus of the given server listening on the given address. The
+     * given members may include the address of this node.
+     */
+    public ClusterBus(ClusteredServer server, InetSocketAddress address, List<InetSocketAddress> members) {
+        this.server = server;
+        this.address = address;
+        for (InetSocketAddress member : members) {
+            if (!member.equals(address)) {
+                peers.add(new Peer(member));
+            }
+        }
+    }
+
+    /**
+     * Creates a bus of the given server listening on the given address.
+     */
+    public ClusterBus(ClusteredServer server, InetSocketAddress address, InetSocketAddress... members) {
+        this(server, address, Arrays.asList(members));
+    }
+
+    /**
+     * Starts listening and connecting to members. Messages published by the
+     * server are delivered from then on.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.configureBlocking(false);
+        acceptor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        acceptor.bind(address);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        for (Peer peer : peers) {
+            connect(peer);
+        }
+        server.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                publish(message);
+            }
+        });
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "vibe-cluster-bus");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Cluster bus started on {} with {} members", address, peers.size());
+    }
+
+    /**
+     * Closes connections and stops listening. Frames not written yet are
+     * discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (closed || this.thread == null) {
+                closed = true;
+                return;
+            }
+            closed = true;
+            thread = this.thread;
+        }
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The number of frames discarded so far as too many frames were pending
+     * for a member.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * A delay in milliseconds to reconnect to a member after the connection
+     * is lost or can't be established. The default is <code>1</code>s.
+     */
+    public void setReconnectDelay(int reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * The maximum number of frames to be queued per member while they are
+     * not written, for example, while the member is unreachable. Further
+     * frames are discarded. It also limits received frames waiting for
+     * delivery per connection, beyond which the connection isn't read until
+     * they are delivered. The default is <code>10000</code>.
+     */
+    public void setMaxPendingFrames(int maxPendingFrames) {
+        this.maxPendingFrames = maxPendingFrames;
+    }
+
+    /**
+     * The maximum length of a frame in bytes to be received. A connection
+     * sending a longer frame is closed. The default is <code>1</code>MB.
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Allows received messages to consist of the given classes in addition
+     * to the default ones, typically actions other than {@code Sentence}'s.
+     * A name ending with a dot such as {@code com.example.} allows every
+     * class in the package and its subpackages. A message having a class not
+     * allowed is discarded.
+     */
+    public void allowClasses(String... names) {
+        allowedClasses.addAll(Arrays.asList(names));
+    }
+
+    private void publish(Map<String, Object> message) {
+        ByteBuffer frame;
+        try {
+            frame = serialize(message);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (Peer peer : peers) {
+            peer.offer(frame.duplicate());
+        }
+    }
+
+    // Serializes the message into a frame with the length prefix written in
+    // place
+    private static ByteBuffer serialize(Map<String, Object> message) throws IOException {
+        FrameOutputStream out = new FrameOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(out)) {
+            output.writeObject(message);
+        }
+        return out.toFrame();
+    }
+
+    private static class FrameOutputStream extends ByteArrayOutputStream {
+        FrameOutputStream() {
+            super(256);
+            count = 4;
+        }
+
+        ByteBuffer toFrame() {
+            ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+            frame.putInt(0, count - 4);
+            return frame;
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(reconnectTimeout());
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    // A key cancelled in the meantime, for example, throws
+                    // CancelledKeyException which shouldn't end the loop
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.attachment() instanceof Peer) {
+                            handle((Peer) key.attachment(), key);
+                        } else {
+                            read((Inbound) key.attachment(), key);
+                        }
+                    } catch (RuntimeException e) {
+                        failed(key, e);
+                    }
+                }
+                Peer peer;
+                while ((peer = flushes.poll()) != null) {
+                    // Frames offered from now on schedule the peer again
+                    peer.scheduled.set(false);
+                    if (peer.connected) {
+                        try {
+                            write(peer);
+                        } catch (RuntimeException e) {
+                            disconnect(peer, e);
+                        }
+                    }
+                }
+                Inbound inbound;
+                while ((inbound = resumes.poll()) != null) {
+                    if (inbound.key.isValid()) {
+                        inbound.key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (Peer p : peers) {
+                    if (p.channel == null && now >= p.reconnectAt) {
+                        connect(p);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cluster bus on {} has failed", address, e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+            log.info("Cluster bus on {} has been closed", address);
+        }
+    }
+
+    private void failed(SelectionKey key, RuntimeException e) {
+        if (key.attachment() instanceof Peer) {
+            disconnect((Peer) key.attachment(), e);
+        } else if (key.attachment() instanceof Inbound) {
+            log.error("Connection to {} has failed", address, e);
+            closeQuietly(key.channel());
+        } else {
+            log.error("Cluster bus on {} has failed to accept", address, e);
+        }
+    }
+
+    // Returns how long to wait for the next reconnection, 0 if there is none
+    private long reconnectTimeout() {
+        long next = Long.MAX_VALUE;
+        for (Peer peer : peers) {
+            if (peer.channel == null) {
+                next = Math.min(next, peer.reconnectAt);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(next - System.currentTimeMillis(), 1);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = acceptor.accept();
+        if (channel != null) {
+            InetAddress remote = channel.socket().getInetAddress();
+            if (!isMember(remote)) {
+                log.warn("Connection from {} to {} has been refused as it's not a member", remote, address);
+                closeQuietly(channel);
+                return;
+            }
+            channel.configureBlocking(false);
+            Inbound inbound = new Inbound();
+            inbound.key = channel.register(selector, SelectionKey.OP_READ, inbound);
+            log.trace("{} has connected to {}", channel.socket().getRemoteSocketAddress(), address);
+        }
+    }
+
+    // Members are identified by host as connections come from ephemeral
+    // ports
+    private boolean isMember(InetAddress remote) {
+        if (remote.equals(address.getAddress())) {
+            return true;
+        }
+        for (Peer peer : peers) {
+            if (remote.equals(peer.address.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void connect(Peer peer) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            peer.channel = channel;
+            if (channel.connect(peer.address)) {
+                peer.key = channel.register(selector, 0, peer);
+                connected(peer);
+            } else {
+                peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+            }
+        } catch (IOException | RuntimeException e) {
+            // An unresolved address throws a RuntimeException
+            disconnect(peer, e);
+        }
+    }
+
+    private void connected(Peer peer) {
+        log.debug("{} has connected to {}", address, peer.address);
+        peer.connected = true;
+        // Reading is only to find out the connection is closed
+        peer.key.interestOps(SelectionKey.OP_READ);
+        write(peer);
+    }
+
+    private void handle(Peer peer, SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (peer.channel.finishConnect()) {
+                    connected(peer);
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                ByteBuffer ignored = ByteBuffer.allocate(64);
+                if (peer.channel.read(ignored) < 0) {
+                    disconnect(peer, null);
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(peer);
+            }
+        } catch (IOException e) {
+            disconnect(peer, e);
+        }
+    }
+
+    private void write(Peer peer) {
+        try {
+            while (true) {
+                ByteBuffer frame;
+                while (peer.batchSize < BATCH_SIZE && (frame = peer.queue.poll()) != null) {
+                    peer.pending.decrementAndGet();
+                    peer.batch[peer.batchSize++] = frame;
+                }
+                if (peer.batchSize == 0) {
+                    break;
+                }
+                peer.channel.write(peer.batch, 0, peer.batchSize);
+                int written = 0;
+                while (written < peer.batchSize && !peer.batch[written].hasRemaining()) {
+                    written++;
+                }
+                System.arraycopy(peer.batch, written, peer.batch, 0, peer.batchSize - written);
+                Arrays.fill(peer.batch, peer.batchSize - written, peer.batchSize, null);
+                peer.batchSize -= written;
+                if (peer.batchSize > 0) {
+                    // The socket buffer is full
+                    peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            peer.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            disconnect(peer, e);
+        }
+    }
+
+    private void disconnect(Peer peer, Exception e) {
+        if (e != null) {
+            log.debug("Connection from {} to {} has failed", address, peer.address, e);
+        }
+        closeQuietly(peer.channel);
+        peer.channel = null;
+        peer.key = null;
+        peer.connected = false;
+        peer.reconnectAt = System.currentTimeMillis() + reconnectDelay;
+        // A partially written frame is written again from the start on the
+        // next connection
+        for (int i = 0; i < peer.batchSize; i++) {
+            peer.batch[i].rewind();
+        }
+    }
+
+    private void read(Inbound inbound, SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (channel.read(inbound.buffer) < 0) {
+                closeQuietly(channel);
+                return;
+            }
+            ByteBuffer buffer = inbound.buffer;
+            buffer.flip();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > maxFrameLength) {
+                    throw new IOException("Frame length " + length + " exceeded the max length " + maxFrameLength);
+                }
+                if (buffer.remaining() < 4 + length) {
+                    if (buffer.capacity() < 4 + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(buffer);
+                        larger.flip();
+                        inbound.buffer = buffer = larger;
+                    }
+                    break;
+                }
+                int offset = buffer.position() + 4;
+                inbound.offer(Arrays.copyOfRange(buffer.array(), offset, offset + length));
+                buffer.position(offset + length);
+            }
+            buffer.compact();
+            if (inbound.pending.get() >= maxPendingFrames) {
+                inbound.pause();
+            }
+        } catch (IOException e) {
+            log.error("Connection to {} has failed", address, e);
+            closeQuietly(channel);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliver(byte[] frame) {
+        Map<String, Object> message;
+        try (ObjectInputStream input = new FilteringInputStream(new ByteArrayInputStream(frame))) {
+            message = (Map<String, Object>) input.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.error("Failed to deserialize a message", e);
+            return;
+        }
+        try {
+            server.messageAction().on(message);
+        } catch (RuntimeException e) {
+            log.error("Failed to process a message {}", message, e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignores
+            }
+        }
+    }
+
+    /**
+     * Represents the outbound connection to a member.
+     */
+    private class Peer {
+        final InetSocketAddress address;
+        final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // The following fields are owned by the I/O thread
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        long reconnectAt;
+        final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+        int batchSize;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void offer(ByteBuffer frame) {
+            if (pending.incrementAndGet() > maxPendingFrames) {
+                pending.decrementAndGet();
+                dropped.incrementAndGet();
+                log.warn("A frame to {} has been dropped as too many frames are pending", address);
+                return;
+            }
+            queue.offer(frame);
+            if (scheduled.compareAndSet(false, true)) {
+                flushes.offer(this);
+                selector.wakeup();
+            }
+        }
+    }
+
+    private boolean isAllowed(String name) {
+        // Arrays of primitives are always allowed
+        if (name.startsWith("[")) {
+            int index = name.lastIndexOf('[') + 1;
+            if (name.charAt(index) != 'L') {
+                return true;
+            }
+            name = name.substring(index + 1, name.length() - 1);
+        }
+        for (String allowed : allowedClasses) {
+            if (allowed.endsWith(".") ? name.startsWith(allowed) : name.equals(allowed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refuses to deserialize classes not allowed before they are loaded.
+     */
+    private class FilteringInputStream extends ObjectInputStream {
+        FilteringInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!isAllowed(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Not allowed to be received");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("Proxy classes are not allowed to be received");
+        }
+    }
+
+    /**
+     * Represents an inbound connection from a member. Frames are read by the
+     * I/O thread and delivered one at a time on the workers.
+     */
+    private class Inbound implements Runnable {
+        final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean paused = new AtomicBoolean();
+        // The following fields are owned by the I/O thread
+        SelectionKey key;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        void offer(byte[] frame) {
+            pending.incrementAndGet();
+            frames.offer(frame);
+            schedule();
+        }
+
+        // Stops reading until the workers catch up
+        void pause() {
+            paused.set(true);
+            key.interestOps(0);
+            // The workers may have delivered every frame in the meantime
+            if (pending.get() < maxPendingFrames && paused.compareAndSet(true, false)) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void schedule() {
+            if (!frames.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] frame;
+                for (int i = 0; i < BATCH_SIZE && (frame = frames.poll()) != null; i++) {
+                    deliver(frame);
+                    if (pending.decrementAndGet() < maxPendingFrames && paused.compareAndSet(true, false)) {
+                        resumes.offer(this);
+                        selector.wakeup();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // Yields the worker to other connections
+                schedule();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.cluster;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.atmosphere.vibe.ClusteredServer;
+import org.atmosphere.vibe.TestTransport;
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+public class ClusterBusTest {
+
+    @Test
+    public void publish() throws Exception {
+        int size = 3;
+        InetSocketAddress[] members = new InetSocketAddress[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = new InetSocketAddress("127.0.0.1", freePort());
+        }
+        ClusteredServer[] servers = new ClusteredServer[size];
+        ClusterBus[] buses = new ClusterBus[size];
+        TestTransport[] transports = new TestTransport[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                servers[i] = new ClusteredServer();
+                buses[i] = new ClusterBus(servers[i], members[i], members);
+                buses[i].setReconnectDelay(50);
+                buses[i].start();
+                transports[i] = new TestTransport();
+                servers[i].on(transports[i]);
+            }
+            // Frames are queued until connections are established
+            for (int i = 0; i < 1000; i++) {
+                servers[i % size].all().send("message", i);
+            }
+            for (TestTransport transport : transports) {
+                assertThat(transport.await(1000, 10000), is(true));
+            }
+            // Messages from the same node arrive in order
+            for (TestTransport transport : transports) {
+                int last = -1;
+                for (String text : transport.sent()) {
+                    int value = Integer.parseInt(text.replaceAll(".*\"data\":(\\d+).*", "$1"));
+                    if (value % size == 0) {
+                        assertThat(value > last, is(true));
+                        last = value;
+                    }
+                }
+            }
+        } finally {
+            for (ClusterBus bus : buses) {
+                if (bus != null) {
+                    bus.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        InetSocketAddress a = new InetSocketAddress("127.0.0.1", freePort());
+        InetSocketAddress b = new InetSocketAddress("127.0.0.1", freePort());
+        ClusteredServer serverA = new ClusteredServer();
+        ClusterBus busA = new ClusterBus(serverA, a, a, b);
+        busA.setReconnectDelay(50);
+        busA.start();
+        try {
+            serverA.all().send("message", "before");
+            // The member starts late and restarts
+            for (int i = 0; i < 2; i++) {
+                ClusteredServer serverB = new ClusteredServer();
+                TestTransport transport = new TestTransport();
+                serverB.on(transport);
+                ClusterBus busB = new ClusterBus(serverB, b, a, b);
+                busB.start();
+                if (i == 0) {
+                    // Frames are kept while the member is unreachable
+                    assertThat(transport.await(1, 10000), is(true));
+                    assertThat(transport.sent().get(0).contains("before"), is(true));
+                } else {
+                    // Frames written before the lost connection is noticed
+                    // may be lost
+                    while (!transport.await(1, 100)) {
+                        serverA.all().send("message", "after");
+                    }
+                }
+                busB.close();
+            }
+        } finally {
+            busA.close();
+        }
+    }
+
+    @Test
+    public void refuseNonMember() throws Exception {
+        InetSocketAddress a = new InetSocketAddress("127.0.0.1", freePort());
+        InetSocketAddress b = new InetSocketAddress("127.0.0.2", freePort());
+        ClusterBus bus = new ClusterBus(new ClusteredServer(), a, a, b);
+        bus.start();
+        try {
+            try (Socket socket = new Socket(a.getAddress(), a.getPort(), InetAddress.getByName("127.0.0.3"), 0)) {
+                socket.setSoTimeout(10000);
+                assertThat(socket.getInputStream().read(), is(-1));
+            }
+        } finally {
+            bus.close();
+        }
+    }
+
+    @Test
+    public void refuseClass() throws Exception {
+        InetSocketAddress a = new InetSocketAddress("127.0.0.1", freePort());
+        ClusteredServer server = new ClusteredServer();
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        ClusterBus bus = new ClusterBus(server, a, a);
+        bus.start();
+        // Captures a message of other node to send it as a member
+        final List<Map<String, Object>> messages = new ArrayList<>();
+        ClusteredServer other = new ClusteredServer();
+        other.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                messages.add(message);
+            }
+        });
+        other.all().send("message", "refused");
+        other.all().send("message", "allowed");
+        other.close();
+        // File is serializable but not allowed
+        Map<String, Object> refused = new LinkedHashMap<>(messages.get(0));
+        refused.put("file", new File("refused"));
+        try (Socket socket = new Socket(a.getAddress(), a.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            writeFrame(out, refused);
+            writeFrame(out, messages.get(1));
+            out.flush();
+            assertThat(transport.await(1, 10000), is(true));
+            assertThat(transport.sent().get(0).contains("allowed"), is(true));
+        } finally {
+            bus.close();
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(object);
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
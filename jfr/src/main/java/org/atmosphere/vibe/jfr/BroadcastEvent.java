@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Recorded when an action has been executed with a group of sockets like
+ * {@code server.all(action)}. Only executions taking longer than the threshold
+ * are recorded.
+ *
+ * @author Donghwan Kim
+ */
+@Name("org.atmosphere.vibe.Broadcast")
+@Label("Broadcast")
+@Category("Vibe")
+@StackTrace(false)
+@Threshold("10 ms")
+class BroadcastEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Tags")
+    String tags;
+
+    @Label("Topic")
+    String topic;
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jfr;
+
+import java.util.Arrays;
+
+import org.atmosphere.vibe.DefaultServer;
+import org.atmosphere.vibe.DispatchInterceptor;
+import org.atmosphere.vibe.HeartbeatFailedException;
+import org.atmosphere.vibe.Sentence;
+import org.atmosphere.vibe.Server;
+import org.atmosphere.vibe.ServerSocket;
+import org.atmosphere.vibe.SocketAction;
+import org.atmosphere.vibe.TagQuery;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.transport.ServerTransport;
+
+/**
+ * {@link Server} decorating another server to emit JDK Flight Recorder events.
+ * <p>
+ * Use it in place of the given server, e.g.
+ * {@code httpTransportServer.ontransport(new FlightRecorderServer(server))}.
+ * The following events are emitted under the {@code Vibe} category.
+ * <ul>
+ * <li>{@code org.atmosphere.vibe.SocketOpen}</li>
+ * <li>{@code org.atmosphere.vibe.SocketClose}</li>
+ * <li>{@code org.atmosphere.vibe.HeartbeatTimeout}</li>
+ * <li>{@code org.atmosphere.vibe.Dispatch}, above 10 ms by default, only if the
+ * given server is {@link DefaultServer} whose dispatch interceptor is
+ * replaced with one recording the event around the previous one if any</li>
+ * <li>{@code org.atmosphere.vibe.Send}, above 10 ms by default</li>
+ * <li>{@code org.atmosphere.vibe.Broadcast}, above 10 ms by default</li>
+ * </ul>
+ * Thresholds can be adjusted through the recording settings like any other
+ * JFR event. An event whose threshold is not exceeded costs a couple of clock
+ * reads so that it can be left on in production.
+ * 
+ * @author Donghwan Kim
+ */
+public class FlightRecorderServer implements Server {
+
+    private final Server server;
+
+    public FlightRecorderServer(Server server) {
+        this.server = server;
+        if (server instanceof DefaultServer) {
+            final DispatchInterceptor previous = ((DefaultServer) server).getDispatchInterceptor();
+            ((DefaultServer) server).setDispatchInterceptor(new DispatchInterceptor() {
+                @Override
+                public void dispatch(ServerSocket socket, String text, Runnable task) {
+                    DispatchEvent event = new DispatchEvent();
+                    event.begin();
+                    if (previous == null) {
+                        task.run();
+                    } else {
+                        previous.dispatch(socket, text, task);
+                    }
+                    event.end();
+                    // The type is extracted only for slow dispatches to be
+                    // recorded
+                    if (event.shouldCommit()) {
+                        event.type = FlightRecorderTransport.eventType(text);
+                        event.transport = FlightRecorderTransport.name(socket.uri());
+                        event.commit();
+                    }
+                }
+            });
+        }
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                SocketOpenEvent openEvent = new SocketOpenEvent();
+                if (openEvent.isEnabled()) {
+                    openEvent.uri = socket.uri();
+                    openEvent.commit();
+                }
+            }
+        });
+        // Registered on the server not to cost each socket its own actions
+        server.on("error", new SocketAction<Throwable>() {
+            @Override
+            public void on(ServerSocket socket, Throwable throwable) {
+                if (throwable instanceof HeartbeatFailedException) {
+                    HeartbeatTimeoutEvent event = new HeartbeatTimeoutEvent();
+                    if (event.isEnabled()) {
+                        event.uri = socket.uri();
+                        event.commit();
+                    }
+                }
+            }
+        });
+        server.on("close", new SocketAction<Void>() {
+            @Override
+            public void on(ServerSocket socket, Void data) {
+                SocketCloseEvent event = new SocketCloseEvent();
+                // The lifetime is known only for transports given to this
+                // server
+                ServerTransport transport = socket.unwrap(ServerTransport.class);
+                if (event.isEnabled() && transport instanceof FlightRecorderTransport) {
+                    event.uri = socket.uri();
+                    event.lifetime = System.currentTimeMillis() - ((FlightRecorderTransport) transport).openedAt;
+                    event.commit();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void on(ServerTransport transport) {
+        server.on(FlightRecorderTransport.of(transport));
+    }
+
+    @Override
+    public Sentence all() {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                all(action);
+            }
+        });
+    }
+
+    @Override
+    public Server all(Action<ServerSocket> action) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        server.all(action);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "all";
+            event.commit();
+        }
+        return this;
+    }
+
+    @Override
+    public Sentence byTag(final String... names) {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                byTag(names, action);
+            }
+        });
+    }
+
+    @Override
+    public Server byTag(String name, Action<ServerSocket> action) {
+        return byTag(new String[] { name }, action);
+    }
+
+    @Override
+    public Server byTag(String[] names, Action<ServerSocket> action) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        server.byTag(names, action);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "byTag";
+            event.tags = Arrays.toString(names);
+            event.commit();
+        }
+        return this;
+    }
+
+    @Override
+    public Sentence byTag(final TagQuery query) {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                byTag(query, action);
+            }
+        });
+    }
+
+    @Override
+    public Server byTag(TagQuery query, Action<ServerSocket> action) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        server.byTag(query, action);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "byTag";
+            event.tags = query.toString();
+            event.commit();
+        }
+        return this;
+    }
+
+    @Override
+    public Sentence byTopic(final String topic) {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                byTopic(topic, action);
+            }
+        });
+    }
+
+    @Override
+    public Server byTopic(String topic, Action<ServerSocket> action) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        server.byTopic(topic, action);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "byTopic";
+            event.topic = topic;
+            event.commit();
+        }
+        return this;
+    }
+
+    @Override
+    public long count() {
+        return server.count();
+    }
+
+    @Override
+    public long count(String tag) {
+        return server.count(tag);
+    }
+
+    @Override
+    public Server onsocket(Action<ServerSocket> action) {
+        server.onsocket(action);
+        return this;
+    }
+
+    @Override
+    public <T> Server on(String event, SocketAction<T> action) {
+        server.on(event, action);
+        return this;
+    }
+
+}
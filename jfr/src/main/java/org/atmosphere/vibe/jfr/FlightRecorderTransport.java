@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jfr;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.transport.PooledBuffer;
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityTransport;
+import org.atmosphere.vibe.transport.ServerTransport;
+import org.atmosphere.vibe.transport.Utf8Transport;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * {@link ServerTransport} decorating another transport to emit JDK Flight
+ * Recorder events on send. Use {@link #of(ServerTransport)} so that the
+ * decorator implements {@link Utf8Transport} and {@link PriorityTransport}
+ * as the given transport does.
+ *
+ * @author Donghwan Kim
+ */
+class FlightRecorderTransport implements ServerTransport {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    final ServerTransport transport;
+    private final String name;
+    // To record the lifetime of the socket on close
+    final long openedAt = System.currentTimeMillis();
+
+    FlightRecorderTransport(ServerTransport transport) {
+        this.transport = transport;
+        this.name = name(transport.uri());
+    }
+
+    /**
+     * Decorates the given transport implementing the same optional
+     * interfaces.
+     */
+    static FlightRecorderTransport of(ServerTransport transport) {
+        boolean utf8 = transport instanceof Utf8Transport;
+        if (transport instanceof PriorityTransport) {
+            return utf8 ? new PriorityUtf8(transport) : new PriorityOnly(transport);
+        }
+        return utf8 ? new Utf8(transport) : new FlightRecorderTransport(transport);
+    }
+
+    @Override
+    public String uri() {
+        return transport.uri();
+    }
+
+    @Override
+    public ServerTransport onerror(Action<Throwable> action) {
+        transport.onerror(action);
+        return this;
+    }
+
+    @Override
+    public ServerTransport ontext(Action<String> action) {
+        transport.ontext(action);
+        return this;
+    }
+
+    @Override
+    public ServerTransport onbinary(Action<ByteBuffer> action) {
+        transport.onbinary(action);
+        return this;
+    }
+
+    @Override
+    public ServerTransport onpong(Action<Void> action) {
+        transport.onpong(action);
+        return this;
+    }
+
+    @Override
+    public ServerTransport send(String data) {
+        SendEvent event = new SendEvent();
+        event.begin();
+        transport.send(data);
+        sent(event, data.length(), false);
+        return this;
+    }
+
+    @Override
+    public ServerTransport send(ByteBuffer data) {
+        int size = data.remaining();
+        SendEvent event = new SendEvent();
+        event.begin();
+        transport.send(data);
+        sent(event, size, true);
+        return this;
+    }
+
+    ServerTransport sendPooled(PooledBuffer data) {
+        SendEvent event = new SendEvent();
+        // The buffer is released once written
+        int size = event.isEnabled() ? data.buffer().remaining() : 0;
+        event.begin();
+        ((Utf8Transport) transport).send(data);
+        sent(event, size, false);
+        return this;
+    }
+
+    ServerTransport sendPooled(PooledBuffer data, Priority priority) {
+        SendEvent event = new SendEvent();
+        int size = event.isEnabled() ? data.buffer().remaining() : 0;
+        event.begin();
+        ((PriorityTransport) transport).send(data, priority);
+        sent(event, size, false);
+        return this;
+    }
+
+    void sent(SendEvent event, int size, boolean binary) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.size = size;
+            event.binary = binary;
+            event.transport = name;
+            event.commit();
+        }
+    }
+
+    @Override
+    public ServerTransport onclose(Action<Void> action) {
+        transport.onclose(action);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> clazz) {
+        return transport.unwrap(clazz);
+    }
+
+    @Override
+    public String toString() {
+        return transport.toString();
+    }
+
+    /**
+     * Returns the name of the transport of the given URI to be recorded.
+     */
+    static String name(String uri) {
+        String scheme = URI.create(uri).getScheme();
+        return scheme != null && scheme.startsWith("ws") ?
+            "websocket" :
+            "http" + HttpTransportServer.parseQuery(uri).get("transport");
+    }
+
+    /**
+     * Returns the type of the given event or {@code null} if it's not a valid
+     * event.
+     */
+    static String eventType(String text) {
+        try (JsonParser parser = jsonFactory.createParser(text)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("type".equals(field)) {
+                    return parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // It's not a valid event
+        }
+        return null;
+    }
+
+    private static class Utf8 extends FlightRecorderTransport implements Utf8Transport {
+
+        Utf8(ServerTransport transport) {
+            super(transport);
+        }
+
+        @Override
+        public ServerTransport send(PooledBuffer data) {
+            return sendPooled(data);
+        }
+
+    }
+
+    private static class PriorityOnly extends FlightRecorderTransport implements PriorityTransport {
+
+        PriorityOnly(ServerTransport transport) {
+            super(transport);
+        }
+
+        @Override
+        public ServerTransport send(String data, Priority priority) {
+            SendEvent event = new SendEvent();
+            event.begin();
+            ((PriorityTransport) transport).send(data, priority);
+            sent(event, data.length(), false);
+            return this;
+        }
+
+        @Override
+        public ServerTransport send(PooledBuffer data, Priority priority) {
+            return sendPooled(data, priority);
+        }
+
+        @Override
+        public ServerTransport onwrite(Action<String> action) {
+            ((PriorityTransport) transport).onwrite(action);
+            return this;
+        }
+
+    }
+
+    private static class PriorityUtf8 extends PriorityOnly implements Utf8Transport {
+
+        PriorityUtf8(ServerTransport transport) {
+            super(transport);
+        }
+
+        @Override
+        public ServerTransport send(PooledBuffer data) {
+            return sendPooled(data);
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when a socket has failed to exchange heartbeat in time.
+ *
+ * @author Donghwan Kim
+ */
+@Name("org.atmosphere.vibe.HeartbeatTimeout")
+@Label("Heartbeat Timeout")
+@Category("Vibe")
+@StackTrace(false)
+class HeartbeatTimeoutEvent extends Event {
+
+    @Label("URI")
+    String uri;
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jfr;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.atmosphere.vibe.DefaultServer;
+import org.atmosphere.vibe.DispatchInterceptor;
+import org.atmosphere.vibe.ServerSocket;
+import org.atmosphere.vibe.TestTransport;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.VoidAction;
+import org.atmosphere.vibe.transport.PriorityTransport;
+import org.atmosphere.vibe.transport.ServerTransport;
+import org.atmosphere.vibe.transport.Utf8Transport;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderServerTest {
+
+    @Test
+    public void optionalInterfaces() {
+        ServerTransport transport = FlightRecorderTransport.of(new FlaggedTransport());
+        assertThat(transport, instanceOf(PriorityTransport.class));
+        assertThat(transport, instanceOf(Utf8Transport.class));
+        ServerTransport plain = FlightRecorderTransport.of(new TestTransport());
+        assertThat(plain, not(instanceOf(PriorityTransport.class)));
+        assertThat(plain, not(instanceOf(Utf8Transport.class)));
+    }
+
+    @Test
+    public void dispatchOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DefaultServer server = new DefaultServer();
+        server.setDispatchExecutor(executor);
+        final CountDownLatch handled = new CountDownLatch(1);
+        FlightRecorderServer recorderServer = new FlightRecorderServer(server);
+        recorderServer.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.on("slow", new VoidAction() {
+                    @Override
+                    public void on() {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        handled.countDown();
+                    }
+                });
+            }
+        });
+        List<RecordedEvent> events = new ArrayList<>();
+        Path file = Files.createTempFile("vibe", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(DispatchEvent.class).withThreshold(Duration.ofMillis(50));
+            recording.start();
+            TestTransport transport = new TestTransport();
+            recorderServer.on(transport);
+            transport.receive("{\"id\":\"1\",\"type\":\"slow\",\"data\":null,\"reply\":false}");
+            assertThat(handled.await(3, TimeUnit.SECONDS), is(true));
+            // The event is committed after the handler returns
+            Thread.sleep(100);
+            recording.stop();
+            recording.dump(file);
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals("org.atmosphere.vibe.Dispatch")) {
+                    events.add(event);
+                }
+            }
+        } finally {
+            Files.delete(file);
+            executor.shutdown();
+        }
+        // The dispatch is measured on the executor, not while enqueued
+        assertThat(events.size(), is(1));
+        assertThat(events.get(0).getString("type"), is("slow"));
+        assertThat(events.get(0).getString("transport"), is("httptest"));
+        assertThat(events.get(0).getDuration().toMillis(), greaterThanOrEqualTo(100L));
+    }
+
+    @Test
+    public void openAndClose() throws Exception {
+        FlightRecorderServer recorderServer = new FlightRecorderServer(new DefaultServer());
+        List<RecordedEvent> events = new ArrayList<>();
+        Path file = Files.createTempFile("vibe", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(SocketOpenEvent.class);
+            recording.enable(SocketCloseEvent.class);
+            recording.start();
+            TestTransport transport = new TestTransport();
+            recorderServer.on(transport);
+            Thread.sleep(50);
+            transport.close();
+            recording.stop();
+            recording.dump(file);
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().startsWith("org.atmosphere.vibe.Socket")) {
+                    events.add(event);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getEventType().getName(), is("org.atmosphere.vibe.SocketOpen"));
+        assertThat(events.get(1).getEventType().getName(), is("org.atmosphere.vibe.SocketClose"));
+        assertThat(events.get(1).getDuration("lifetime").toMillis(), greaterThanOrEqualTo(50L));
+    }
+
+    @Test
+    public void chainInterceptor() {
+        DefaultServer server = new DefaultServer();
+        final List<String> calls = new ArrayList<>();
+        server.setDispatchInterceptor(new DispatchInterceptor() {
+            @Override
+            public void dispatch(ServerSocket socket, String text, Runnable task) {
+                calls.add("before");
+                task.run();
+                calls.add("after");
+            }
+        });
+        FlightRecorderServer recorderServer = new FlightRecorderServer(server);
+        recorderServer.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.on("chat", new VoidAction() {
+                    @Override
+                    public void on() {
+                        calls.add("chat");
+                    }
+                });
+            }
+        });
+        TestTransport transport = new TestTransport();
+        recorderServer.on(transport);
+        transport.receive("{\"id\":\"1\",\"type\":\"chat\",\"data\":null,\"reply\":false}");
+        assertThat(calls.toString(), is("[before, chat, after]"));
+    }
+
+    private static class FlaggedTransport extends TestTransport implements PriorityTransport, Utf8Transport {}
+
+}
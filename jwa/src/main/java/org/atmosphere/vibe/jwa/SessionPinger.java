@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.jwa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.Session;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.websocket.ServerWebSocket;
+import org.atmosphere.vibe.transport.websocket.WebSocketTransportServer;
+import org.atmosphere.vibe.transport.websocket.WebSocketTransportServer.Pinger;
+
+/**
+ * {@link Pinger} for WebSockets whose {@link ServerWebSocket#unwrap(Class)}
+ * gives {@link Session} of Java API for WebSocket. Set it to
+ * {@link WebSocketTransportServer#setPinger(Pinger)}.
+ *
+ * @author Donghwan Kim
+ */
+public class SessionPinger implements Pinger {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final String PONG = SessionPinger.class.getName() + ".pong";
+
+    @Override
+    public void ping(ServerWebSocket ws, final Action<Void> pong) {
+        Session session = ws.unwrap(Session.class);
+        if (session == null) {
+            throw new IllegalStateException(ws + " is not backed by " + Session.class.getName());
+        }
+        // A session accepts only one handler per message type
+        if (session.getUserProperties().put(PONG, Boolean.TRUE) == null) {
+            session.addMessageHandler(new MessageHandler.Whole<PongMessage>() {
+                @Override
+                public void onMessage(PongMessage message) {
+                    pong.on(null);
+                }
+            });
+        }
+        try {
+            session.getAsyncRemote().sendPing(EMPTY.duplicate());
+        } catch (IOException e) {
+            // The pong won't arrive and the next ping will tell
+        }
+    }
+
+}
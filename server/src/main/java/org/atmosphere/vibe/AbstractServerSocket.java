@@ -15,6 +15,9 @@
  */
 package org.atmosphere.vibe;
 
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityTransport;
+
 /**
  * {@code AbstractSocket} consists of a set of common functionality of
  * {@link Sentence} and {@link ServerSocket}.
@@ -33,6 +36,30 @@ public interface AbstractServerSocket<T> {
      */
     T send(String event, Object data);
 
+    /**
+     * Sends a given event with data with a given priority. The priority takes
+     * effect with {@link PriorityTransport} only.
+     */
+    T send(String event, Object data, Priority priority);
+
+    /**
+     * Sends events in a given batch as a single frame if the client has asked
+     * for it and one frame per event otherwise.
+     */
+    T send(Batch batch);
+
+    /**
+     * Sends a given state as an event of a given key. Once a state has been
+     * sent, the next state of the same key is sent as a JSON merge patch from
+     * the previous one, marked with {@code "state":"patch"} in the event,
+     * which the client should apply to the previous state to fire the event
+     * with the resulting one. A full state is marked with
+     * {@code "state":"snapshot"} and sent when it's the first one of the key,
+     * the socket has been resumed, the patch is not much smaller or a merge
+     * patch can't express the change.
+     */
+    T sendState(String key, Object state);
+
     /**
      * Closes the socket.
      */
@@ -48,4 +75,18 @@ public interface AbstractServerSocket<T> {
      */
     T untag(String... names);
 
+    /**
+     * Subscribes to topics matching given patterns. A topic consists of
+     * segments delimited by {@code .} like {@code quotes.NYSE.IBM} and a
+     * pattern may use {@code *} to match exactly one segment and {@code #} to
+     * match zero or more segments like {@code quotes.NYSE.*} and
+     * {@code quotes.#}.
+     */
+    T subscribe(String... patterns);
+
+    /**
+     * Unsubscribes from topics matching given patterns.
+     */
+    T unsubscribe(String... patterns);
+
 }
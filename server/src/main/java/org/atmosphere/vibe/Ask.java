@@ -0,0 +1,382 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import org.atmosphere.vibe.internal.SharedScheduler;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.VoidAction;
+
+/**
+ * A request sent to every socket of a {@link Sentence} whose replies are
+ * gathered into a single completion. It's created by
+ * {@link Sentence#ask(String, Object)} and sent by {@link Ask#then(Action)}
+ * like the following.
+ * 
+ * <pre>
+ * server.byTag(&quot;room&quot;).ask(&quot;vote&quot;, question).quorum().within(5000).then(new Action&lt;Ask&gt;() {
+ *     public void on(Ask ask) {
+ *         for (int i = 0; i &lt; ask.size(); i++) {
+ *             if (ask.resolved(i)) {
+ *                 tally(ask.data(i));
+ *             }
+ *         }
+ *     }
+ * });
+ * </pre>
+ * 
+ * The request completes when every socket has replied unless another policy
+ * is given, and a socket closed before replying counts as having rejected.
+ * Replies are gathered in arrays indexed in order sockets were asked and
+ * those arriving after completion are ignored. A socket of
+ * {@link DefaultServer} doesn't keep callbacks for the request as its reply
+ * is routed to the request by the server's reply handler through the event
+ * id, and so is its close. Sockets of other implementations receive the
+ * request with callbacks and a close action. Once the request completes with
+ * {@link Ask#first(int)}, it's not sent to the rest of sockets.
+ * <p>
+ * Replies are node-local. A request through {@link ClusteredServer} is sent
+ * only to sockets in this node and isn't published to other nodes, as their
+ * replies couldn't be gathered here.
+ * 
+ * @author Donghwan Kim
+ */
+public class Ask {
+
+    private static final byte PENDING = 0;
+    private static final byte RESOLVED = 1;
+    private static final byte REJECTED = 2;
+    private final Action<Action<ServerSocket>> serverAction;
+    private final String event;
+    private final Object data;
+    private int first;
+    private boolean quorum;
+    private long within;
+    private Action<Ask> doneAction;
+    private ServerSocket[] sockets = new ServerSocket[16];
+    private Object[] values = new Object[16];
+    private byte[] states = new byte[16];
+    // Event ids of the request per socket of DefaultServer
+    private int[] ids = new int[16];
+    // Indexes of sockets of DefaultServer to which replies and closes are
+    // routed and the servers' registries of asks in progress
+    private Map<ServerSocket, Integer> indexes;
+    private List<Set<Ask>> registries;
+    // Close actions of sockets of other implementations by index
+    private Map<Integer, Action<Void>> closeActions;
+    private int size;
+    private int replies;
+    // Replies which resolved, counted toward first
+    private int resolves;
+    private boolean sent;
+    private boolean done;
+    private boolean expired;
+    private ScheduledFuture<?> task;
+
+    Ask(Action<Action<ServerSocket>> serverAction, String event, Object data) {
+        this.serverAction = serverAction;
+        this.event = event;
+        this.data = data;
+    }
+
+    /**
+     * Completes when the given number of sockets have resolved. Rejections
+     * and closed sockets don't count, but the request still completes once
+     * every socket has replied.
+     */
+    public Ask first(int n) {
+        this.first = n;
+        return this;
+    }
+
+    /**
+     * Completes when more than half of sockets have replied.
+     */
+    public Ask quorum() {
+        this.quorum = true;
+        return this;
+    }
+
+    /**
+     * Completes with replies so far when the given time in milliseconds has
+     * elapsed.
+     */
+    public Ask within(long millis) {
+        this.within = millis;
+        return this;
+    }
+
+    /**
+     * Sends the request and calls the given action with this request once on
+     * completion.
+     */
+    public void then(Action<Ask> action) {
+        synchronized (this) {
+            if (doneAction != null) {
+                throw new IllegalStateException("Already sent");
+            }
+            doneAction = action;
+            if (within > 0) {
+                task = SharedScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The done action is user code
+                        SharedScheduler.workers().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (Ask.this) {
+                                    expired = !done;
+                                }
+                                complete();
+                            }
+                        });
+                    }
+                }, within);
+            }
+        }
+        try {
+            serverAction.on(new Request());
+        } catch (RuntimeException e) {
+            finish();
+            throw e;
+        }
+        synchronized (this) {
+            sent = true;
+        }
+        if (completed()) {
+            complete();
+        }
+    }
+
+    /**
+     * The action sending the request to each socket, which
+     * {@link ClusteredServer} executes only in this node.
+     */
+    class Request implements Action<ServerSocket> {
+        @Override
+        public void on(ServerSocket socket) {
+            if (DefaultServer.ask(socket, Ask.this, event, data)) {
+                return;
+            }
+            final int index = add(socket, null);
+            if (index < 0) {
+                return;
+            }
+            socket.send(event, data, new Action<Object>() {
+                @Override
+                public void on(Object value) {
+                    reply(index, value, RESOLVED);
+                }
+            }, new Action<Object>() {
+                @Override
+                public void on(Object value) {
+                    reply(index, value, REJECTED);
+                }
+            });
+            // Called right away if the socket is already closed
+            socket.onclose(closeAction(index));
+        }
+    }
+
+    // Adds the given socket registering this request to the given registry
+    // of its server if it's of DefaultServer, and returns its index or -1 if
+    // the request is already done
+    synchronized int add(ServerSocket socket, Set<Ask> registry) {
+        if (done) {
+            return -1;
+        }
+        if (size == sockets.length) {
+            sockets = Arrays.copyOf(sockets, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        final int index = size;
+        sockets[index] = socket;
+        if (registry != null) {
+            if (indexes == null) {
+                indexes = new IdentityHashMap<>();
+                registries = new ArrayList<>(1);
+            }
+            indexes.put(socket, index);
+            if (!registries.contains(registry)) {
+                registries.add(registry);
+                registry.add(this);
+            }
+        } else {
+            if (closeActions == null) {
+                closeActions = new HashMap<>();
+            }
+            closeActions.put(index, new VoidAction() {
+                @Override
+                public void on() {
+                    reply(index, null, REJECTED);
+                }
+            });
+        }
+        return size++;
+    }
+
+    // Called by a socket of DefaultServer with the id of the request's event
+    synchronized void sent(int index, int id) {
+        ids[index] = id;
+    }
+
+    // Called by the reply handler of DefaultServer. Returns true if the
+    // reply is to this request
+    boolean replied(ServerSocket socket, int id, Object value, boolean exception) {
+        Integer index;
+        synchronized (this) {
+            index = indexes != null ? indexes.get(socket) : null;
+            if (index == null || ids[index] != id) {
+                return false;
+            }
+        }
+        reply(index, value, exception ? REJECTED : RESOLVED);
+        return true;
+    }
+
+    // Called by the close handler of DefaultServer
+    void closed(ServerSocket socket) {
+        Integer index;
+        synchronized (this) {
+            index = indexes != null ? indexes.get(socket) : null;
+        }
+        if (index != null) {
+            reply(index, null, REJECTED);
+        }
+    }
+
+    private synchronized Action<Void> closeAction(int index) {
+        return closeActions.get(index);
+    }
+
+    private void reply(int index, Object value, byte state) {
+        synchronized (this) {
+            if (done || states[index] != PENDING) {
+                return;
+            }
+            values[index] = value;
+            states[index] = state;
+            replies++;
+            if (state == RESOLVED) {
+                resolves++;
+            }
+        }
+        if (completed()) {
+            complete();
+        }
+    }
+
+    private synchronized boolean completed() {
+        if (first > 0 && resolves >= first) {
+            return true;
+        }
+        return sent && (replies == size || (quorum && replies > size / 2));
+    }
+
+    private void complete() {
+        if (!finish()) {
+            return;
+        }
+        if (closeActions != null) {
+            for (Map.Entry<Integer, Action<Void>> entry : closeActions.entrySet()) {
+                socket(entry.getKey()).off("close", entry.getValue());
+            }
+        }
+        doneAction.on(this);
+    }
+
+    // Marks this request done and unregisters it, returning false if it's
+    // already done
+    private boolean finish() {
+        List<Set<Ask>> unregistered;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            unregistered = registries;
+        }
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (unregistered != null) {
+            for (Set<Ask> registry : unregistered) {
+                registry.remove(this);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of sockets asked.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of sockets replied.
+     */
+    public synchronized int replies() {
+        return replies;
+    }
+
+    /**
+     * Returns {@code true} if the request completed by the time limit.
+     */
+    public synchronized boolean expired() {
+        return expired;
+    }
+
+    /**
+     * Returns the socket of the given index.
+     */
+    public synchronized ServerSocket socket(int index) {
+        return sockets[index];
+    }
+
+    /**
+     * Returns {@code true} if the socket of the given index resolved.
+     */
+    public synchronized boolean resolved(int index) {
+        return states[index] == RESOLVED;
+    }
+
+    /**
+     * Returns {@code true} if the socket of the given index rejected.
+     */
+    public synchronized boolean rejected(int index) {
+        return states[index] == REJECTED;
+    }
+
+    /**
+     * Returns the value the socket of the given index replied with.
+     */
+    public synchronized Object data(int index) {
+        return values[index];
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A series of events to be delivered to a socket as a single frame with
+ * {@link AbstractServerSocket#send(Batch)}.
+ * <p>
+ * The frame is a JSON array whose first element is the id of the first event
+ * and the rest are events in order without ids, like
+ * <code>[5,{"type":"a","data":1,"reply":false},{"type":"b","data":2,"reply":false}]</code>.
+ * The client should assign consecutive ids from the first one and fire events
+ * in order. Events are serialized only once however many sockets the batch is
+ * sent to.
+ * <p>
+ * As the frame is an extension to the protocol, a client has to ask for it
+ * with {@code batch=true} in the query of the handshake URI and the server
+ * answers with {@code batch=true} in the handshake. A socket whose client
+ * hasn't asked for it gets events in the batch one frame per event.
+ * <p>
+ * A batch must not be modified once it's sent and events in a batch can't
+ * have a reply. Instances may be accessed by multiple threads once built.
+ *
+ * @author Donghwan Kim
+ */
+public class Batch implements Serializable {
+
+    private static final long serialVersionUID = 3718624071532913437L;
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final List<Map<String, Object>> events = new ArrayList<>();
+    // The events part of the frame following the id of the first event
+    private transient volatile String text;
+    private transient volatile byte[] bytes;
+
+    /**
+     * Adds an event without data.
+     */
+    public Batch add(String event) {
+        return add(event, null);
+    }
+
+    /**
+     * Adds an event with data.
+     */
+    public Batch add(String event, Object data) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", event);
+        map.put("data", data);
+        map.put("reply", false);
+        events.add(map);
+        text = null;
+        bytes = null;
+        return this;
+    }
+
+    /**
+     * Returns the number of events.
+     */
+    public int size() {
+        return events.size();
+    }
+
+    List<Map<String, Object>> events() {
+        return events;
+    }
+
+    String text() {
+        String string = text;
+        if (string == null) {
+            StringBuilder builder = new StringBuilder();
+            try {
+                for (Map<String, Object> event : events) {
+                    builder.append(',').append(mapper.writeValueAsString(event));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            string = text = builder.append(']').toString();
+        }
+        return string;
+    }
+
+    byte[] bytes() {
+        byte[] array = bytes;
+        if (array == null) {
+            array = bytes = text().getBytes(StandardCharsets.UTF_8);
+        }
+        return array;
+    }
+
+}
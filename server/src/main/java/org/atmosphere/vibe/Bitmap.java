@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Arrays;
+
+/**
+ * A bitmap compressed by omitting empty chunks of 4096 bits. Operations
+ * combine bitmaps a 64-bit word at a time and skip empty chunks. It's not
+ * thread-safe.
+ *
+ * @author Donghwan Kim
+ */
+class Bitmap {
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int WORDS = 1 << (CHUNK_SHIFT - 6);
+    private long[][] chunks = new long[0][];
+
+    void set(int index) {
+        int c = index >>> CHUNK_SHIFT;
+        if (c >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+        }
+        if (chunks[c] == null) {
+            chunks[c] = new long[WORDS];
+        }
+        chunks[c][(index >>> 6) & (WORDS - 1)] |= 1L << index;
+    }
+
+    void clear(int index) {
+        int c = index >>> CHUNK_SHIFT;
+        if (c < chunks.length && chunks[c] != null) {
+            chunks[c][(index >>> 6) & (WORDS - 1)] &= ~(1L << index);
+            if (isEmpty(chunks[c])) {
+                chunks[c] = null;
+            }
+        }
+    }
+
+    Bitmap copy() {
+        Bitmap bitmap = new Bitmap();
+        bitmap.chunks = new long[chunks.length][];
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] != null) {
+                bitmap.chunks[c] = chunks[c].clone();
+            }
+        }
+        return bitmap;
+    }
+
+    Bitmap and(Bitmap other) {
+        for (int c = 0; c < chunks.length; c++) {
+            if (chunks[c] != null) {
+                if (c >= other.chunks.length || other.chunks[c] == null) {
+                    chunks[c] = null;
+                } else {
+                    for (int w = 0; w < WORDS; w++) {
+                        chunks[c][w] &= other.chunks[c][w];
+                    }
+                    if (isEmpty(chunks[c])) {
+                        chunks[c] = null;
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    Bitmap or(Bitmap other) {
+        if (other.chunks.length > chunks.length) {
+            chunks = Arrays.copyOf(chunks, other.chunks.length);
+        }
+        for (int c = 0; c < other.chunks.length; c++) {
+            if (other.chunks[c] != null) {
+                if (chunks[c] == null) {
+                    chunks[c] = other.chunks[c].clone();
+                } else {
+                    for (int w = 0; w < WORDS; w++) {
+                        chunks[c][w] |= other.chunks[c][w];
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    Bitmap andNot(Bitmap other) {
+        int length = Math.min(chunks.length, other.chunks.length);
+        for (int c = 0; c < length; c++) {
+            if (chunks[c] != null && other.chunks[c] != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    chunks[c][w] &= ~other.chunks[c][w];
+                }
+                if (isEmpty(chunks[c])) {
+                    chunks[c] = null;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the index of the first set bit from the given index inclusive
+     * or <code>-1</code> if there is no such bit.
+     */
+    int next(int from) {
+        int c = from >>> CHUNK_SHIFT;
+        int w = (from >>> 6) & (WORDS - 1);
+        long mask = -1L << from;
+        for (; c < chunks.length; c++, w = 0, mask = -1L) {
+            if (chunks[c] != null) {
+                for (; w < WORDS; w++, mask = -1L) {
+                    long word = chunks[c][w] & mask;
+                    if (word != 0) {
+                        return (c << CHUNK_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(word);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    boolean isEmpty() {
+        // Chunks are dropped once emptied
+        for (long[] chunk : chunks) {
+            if (chunk != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEmpty(long[] words) {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -16,13 +16,25 @@
 package org.atmosphere.vibe;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.atmosphere.vibe.internal.SharedScheduler;
 import org.atmosphere.vibe.platform.action.Action;
 import org.atmosphere.vibe.platform.action.Actions;
 import org.atmosphere.vibe.platform.action.ConcurrentActions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link Server} implementation for clustering.
@@ -40,20 +52,39 @@ import org.atmosphere.vibe.platform.action.ConcurrentActions;
  * <li>{@link Server#byTag(String...)}</li>
  * <li>{@link Server#byTag(String, Action)}</li>
  * <li>{@link Server#byTag(String[], Action)}</li>
+ * <li>{@link Server#byTag(TagQuery)}</li>
+ * <li>{@link Server#byTag(TagQuery, Action)}</li>
+ * <li>{@link Server#byTopic(String)}</li>
+ * <li>{@link Server#byTopic(String, Action)}</li>
  * </ul>
- * A message created by this server is passed to
- * {@link ClusteredServer#onpublish(Action)} and a message created by other
- * servers is expected to be passed to {@link ClusteredServer#messageAction()}.
- * Therefore, what you need to do is to publish a message given through
- * {@link ClusteredServer#onpublish(Action)} to every server in the cluster and
- * to subscribe a published message by other servers to delegate it to
- * {@link ClusteredServer#messageAction()}.
+ * A message created by this server is executed with sockets in this server
+ * right away and then passed to {@link ClusteredServer#onpublish(Action)}, and
+ * a message created by other servers is expected to be passed to
+ * {@link ClusteredServer#messageAction()}. Therefore, what you need to do is
+ * to publish a message given through {@link ClusteredServer#onpublish(Action)}
+ * to every other server in the cluster and to subscribe a published message by
+ * other servers to delegate it to {@link ClusteredServer#messageAction()}. A
+ * message carries the id of the server which created it so that it's ignored
+ * if it's delivered back to that server by a bus which echoes messages to the
+ * publisher.
+ * <p>
+ * In addition, each server publishes the number of its sockets and that of
+ * sockets per tag at most once per {@link ClusteredServer#setPresenceInterval(int)}
+ * as PN-counters, once a publishing action is added, which are merged by the
+ * other servers so that {@link Server#count()} and {@link Server#count(String)}
+ * return the total of the cluster without retrieving sockets. A tag no longer
+ * counting any socket is dropped on every server. Publishing stops once the
+ * server is drained or {@link ClusteredServer#close()} is called.
  * <p>
  * Accordingly, such message must be able to be serialized and you have to pass
  * {@link Action} implementing {@link Serializable}. However, serialization of
  * inner classes doesn't work in some cases as expected so that always use
  * {@link Sentence} instead of action if possible unless you use lambda
  * expressions.
+ * <p>
+ * A request made by {@link Sentence#ask(String, Object)} is an exception. As
+ * replies can be gathered only in this server, it's sent only to sockets in
+ * this server and not published.
  * 
  * @author Donghwan Kim
  * @see <a
@@ -62,11 +93,34 @@ import org.atmosphere.vibe.platform.action.ConcurrentActions;
  */
 public class ClusteredServer extends DefaultServer {
 
+    // How often the full counts are published regardless of changes in
+    // presence intervals so that a lost or late message is made up for
+    private static final int FULL_PRESENCE_TICKS = 10;
+
+    private final Logger log = LoggerFactory.getLogger(ClusteredServer.class);
+    private final String nodeId = UUID.randomUUID().toString();
+    private boolean presenceStarted;
+    private boolean closed;
+    private ScheduledFuture<?> presenceTask;
+    private int presenceInterval = 1000;
+    private int presenceTimeout = 30000;
+    // Counts last published by the timer
+    private long[] publishedSockets = new long[2];
+    private Map<String, long[]> publishedTags = new HashMap<>();
+    private int presenceTicks;
+    // Counts of the other nodes and their sums to be read by count
+    private final Map<String, Presence> presences = new HashMap<>();
+    private final AtomicLong remoteSockets = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> remoteTags = new ConcurrentHashMap<>();
     private Actions<Map<String, Object>> publishActions = new ConcurrentActions<>();
     private Action<Map<String, Object>> messageAction = new Action<Map<String, Object>>() {
         @SuppressWarnings("unchecked")
         @Override
         public void on(Map<String, Object> map) {
+            // It's already executed locally when published
+            if (nodeId.equals(map.get("origin"))) {
+                return;
+            }
             String methodName = (String) map.get("method");
             Object[] args = (Object[]) map.get("args");
             switch (methodName) {
@@ -76,6 +130,15 @@ public class ClusteredServer extends DefaultServer {
             case "byTag":
                 ClusteredServer.super.byTag((String[]) args[0], (Action<ServerSocket>) args[1]);
                 break;
+            case "byTagQuery":
+                ClusteredServer.super.byTag((TagQuery) args[0], (Action<ServerSocket>) args[1]);
+                break;
+            case "byTopic":
+                ClusteredServer.super.byTopic((String) args[0], (Action<ServerSocket>) args[1]);
+                break;
+            case "presence":
+                mergePresence((String) args[0], (long[]) args[1], (Map<String, long[]>) args[2], (Boolean) args[3]);
+                break;
             default:
                 throw new IllegalArgumentException("Illegal method name in processing message: "
                         + methodName);
@@ -85,29 +148,253 @@ public class ClusteredServer extends DefaultServer {
 
     @Override
     public Server all(Action<ServerSocket> action) {
-        publishMessage("all", action);
+        super.all(action);
+        if (publishable(action)) {
+            publishMessage("all", action);
+        }
         return this;
     }
 
     @Override
     public Server byTag(String[] names, Action<ServerSocket> action) {
-        publishMessage("byTag", names, action);
+        super.byTag(names, action);
+        if (publishable(action)) {
+            publishMessage("byTag", names, action);
+        }
         return this;
     }
 
+    @Override
+    public Server byTag(TagQuery query, Action<ServerSocket> action) {
+        super.byTag(query, action);
+        if (publishable(action)) {
+            publishMessage("byTagQuery", query, action);
+        }
+        return this;
+    }
+
+    @Override
+    public Server byTopic(String topic, Action<ServerSocket> action) {
+        super.byTopic(topic, action);
+        if (publishable(action)) {
+            publishMessage("byTopic", topic, action);
+        }
+        return this;
+    }
+
+    // Replies to a request can be gathered only in this node so it's sent
+    // only to sockets in this node
+    private static boolean publishable(Action<ServerSocket> action) {
+        return !(action instanceof Ask.Request);
+    }
+
+    @Override
+    public long count() {
+        return super.count() + remoteSockets.get();
+    }
+
+    @Override
+    public long count(String tag) {
+        AtomicLong remote = remoteTags.get(tag);
+        return super.count(tag) + (remote != null ? remote.get() : 0);
+    }
+
+    private synchronized void startPresence() {
+        if (!presenceStarted) {
+            presenceStarted = true;
+            schedulePresence();
+        }
+    }
+
+    private synchronized void schedulePresence() {
+        if (closed) {
+            return;
+        }
+        presenceTask = SharedScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Publishing runs the publish actions, user code, so it
+                // shouldn't hold up the scheduler thread. The next one is
+                // scheduled once it's done so that they don't overlap
+                SharedScheduler.workers().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            publishPresence();
+                            expirePresences();
+                        } catch (RuntimeException e) {
+                            log.error("Failed to publish presence", e);
+                        }
+                        schedulePresence();
+                    }
+                });
+            }
+        }, presenceInterval);
+    }
+
+    // Publishes counts changed since the last time
+    private void publishPresence() {
+        boolean full = presenceTicks++ % FULL_PRESENCE_TICKS == 0;
+        long[] sockets = toArray(tagIndex.counter());
+        Map<String, long[]> tags = new HashMap<>();
+        for (Entry<String, TagIndex.Counter> entry : tagIndex.counters().entrySet()) {
+            long[] counts = toArray(entry.getValue());
+            long[] published = publishedTags.put(entry.getKey(), counts);
+            if (full || published == null || !Arrays.equals(counts, published)) {
+                tags.put(entry.getKey(), counts);
+            }
+        }
+        // A tag whose counter is removed went down to zero
+        Iterator<Entry<String, long[]>> iterator = publishedTags.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<String, long[]> entry = iterator.next();
+            if (tagIndex.counter(entry.getKey()) == null) {
+                iterator.remove();
+                if (full) {
+                    // Dropped by omission
+                    tags.remove(entry.getKey());
+                } else {
+                    long[] published = entry.getValue();
+                    tags.put(entry.getKey(), new long[] { published[0], published[0] });
+                }
+            }
+        }
+        if (full || !tags.isEmpty() || !Arrays.equals(sockets, publishedSockets)) {
+            publishMessage("presence", nodeId, sockets, tags, full);
+        }
+        publishedSockets = sockets;
+    }
+
+    private static long[] toArray(TagIndex.Counter counter) {
+        long decrements = counter.decrements.get();
+        return new long[] { counter.increments.get(), decrements };
+    }
+
+    // Merges counts of the given node taking the larger of increments and
+    // decrements respectively so that an old or duplicate message is harmless.
+    // Full counts have every tag of the node
+    private void mergePresence(String id, long[] sockets, Map<String, long[]> tags, boolean full) {
+        if (nodeId.equals(id)) {
+            return;
+        }
+        synchronized (presences) {
+            Presence presence = presences.get(id);
+            if (presence == null) {
+                presence = new Presence();
+                presences.put(id, presence);
+            }
+            presence.lastSeen = System.currentTimeMillis();
+            presence.sockets = merge(presence.sockets, sockets, remoteSockets);
+            for (Entry<String, long[]> entry : tags.entrySet()) {
+                String tag = entry.getKey();
+                AtomicLong total = remoteTags.get(tag);
+                if (total == null) {
+                    total = new AtomicLong();
+                    remoteTags.put(tag, total);
+                }
+                long[] counts = merge(presence.tags.get(tag), entry.getValue(), total);
+                if (counts[0] == counts[1]) {
+                    presence.tags.remove(tag);
+                } else {
+                    presence.tags.put(tag, counts);
+                }
+                pruneRemoteTag(tag, total);
+            }
+            if (full) {
+                Iterator<Entry<String, long[]>> iterator = presence.tags.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Entry<String, long[]> entry = iterator.next();
+                    if (!tags.containsKey(entry.getKey())) {
+                        iterator.remove();
+                        discard(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private void discard(String tag, long[] counts) {
+        AtomicLong total = remoteTags.get(tag);
+        if (total != null) {
+            total.addAndGet(-(counts[0] - counts[1]));
+            pruneRemoteTag(tag, total);
+        }
+    }
+
+    private void pruneRemoteTag(String tag, AtomicLong total) {
+        if (total.get() == 0) {
+            remoteTags.remove(tag);
+        }
+    }
+
+    private static long[] merge(long[] local, long[] remote, AtomicLong total) {
+        if (local == null) {
+            local = new long[2];
+        }
+        long[] merged = { Math.max(local[0], remote[0]), Math.max(local[1], remote[1]) };
+        total.addAndGet((merged[0] - merged[1]) - (local[0] - local[1]));
+        return merged;
+    }
+
+    // Discards counts of nodes which have left the cluster
+    private void expirePresences() {
+        long now = System.currentTimeMillis();
+        synchronized (presences) {
+            Iterator<Presence> iterator = presences.values().iterator();
+            while (iterator.hasNext()) {
+                Presence presence = iterator.next();
+                if (now - presence.lastSeen > presenceTimeout) {
+                    iterator.remove();
+                    remoteSockets.addAndGet(-(presence.sockets[0] - presence.sockets[1]));
+                    for (Entry<String, long[]> entry : presence.tags.entrySet()) {
+                        discard(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
     private void publishMessage(String method, Object... args) {
         Map<String, Object> map = new LinkedHashMap<>();
+        map.put("origin", nodeId);
         map.put("method", method);
         map.put("args", args);
         publishActions.fire(Collections.unmodifiableMap(map));
     }
 
+    /**
+     * Stops publishing presence so that this server can be garbage collected.
+     * It should be called when the server is no longer used unless it's
+     * drained. This method has no effect if called more than once.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (presenceTask != null) {
+            presenceTask.cancel(false);
+            presenceTask = null;
+        }
+    }
+
+    @Override
+    public void drain(final Action<Integer> progress) {
+        super.drain(new Action<Integer>() {
+            @Override
+            public void on(Integer remaining) {
+                if (remaining == 0) {
+                    close();
+                }
+                progress.on(remaining);
+            }
+        });
+    }
+
     /**
      * Adds an action to be called with a message to be published to every node
      * in the cluster.
      */
     public Server onpublish(Action<Map<String, Object>> action) {
         publishActions.add(action);
+        startPresence();
         return this;
     }
 
@@ -119,4 +406,29 @@ public class ClusteredServer extends DefaultServer {
         return messageAction;
     }
 
+    /**
+     * An interval in milliseconds to publish counts of sockets if changed.
+     * The default is <code>1</code>s.
+     */
+    public void setPresenceInterval(int presenceInterval) {
+        this.presenceInterval = presenceInterval;
+    }
+
+    /**
+     * A timeout in milliseconds to discard counts of a node from which no
+     * counts have been received, as the node is regarded as having left the
+     * cluster. It should be larger than <code>10</code> presence intervals
+     * as unchanged counts are published once per that. The default is
+     * <code>30</code>s.
+     */
+    public void setPresenceTimeout(int presenceTimeout) {
+        this.presenceTimeout = presenceTimeout;
+    }
+
+    private static class Presence {
+        long lastSeen;
+        long[] sockets = new long[2];
+        Map<String, long[]> tags = new HashMap<>();
+    }
+
 }
@@ -16,32 +16,50 @@
 package org.atmosphere.vibe;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.atmosphere.vibe.internal.SharedScheduler;
 import org.atmosphere.vibe.platform.action.Action;
 import org.atmosphere.vibe.platform.action.Actions;
 import org.atmosphere.vibe.platform.action.ConcurrentActions;
 import org.atmosphere.vibe.platform.action.VoidAction;
+import org.atmosphere.vibe.transport.BufferPool;
+import org.atmosphere.vibe.transport.PooledBuffer;
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityTransport;
 import org.atmosphere.vibe.transport.ServerTransport;
+import org.atmosphere.vibe.transport.Utf8Transport;
 import org.atmosphere.vibe.transport.http.HttpTransportServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Default implementation of {@link Server}.
@@ -52,6 +70,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * The following options are configurable.
  * <ul>
  * <li>{@link DefaultServer#setHeartbeat(int)}</li>
+ * <li>{@link DefaultServer#setLazyHeartbeat(boolean)}</li>
+ * <li>{@link DefaultServer#setDispatchExecutor(Executor)}</li>
+ * <li>{@link DefaultServer#setResumeBufferSize(int)}</li>
+ * <li>{@link DefaultServer#setResumeBufferLength(int)}</li>
+ * <li>{@link DefaultServer#setResumeBufferAge(int)}</li>
+ * <li>{@link DefaultServer#setDrainRate(int)}</li>
+ * <li>{@link DefaultServer#setDrainNotice(String)}</li>
+ * <li>{@link DefaultServer#setBufferPool(BufferPool)}</li>
+ * <li>{@link DefaultServer#setStatePatchRatio(double)}</li>
+ * <li>{@link DefaultServer#setOutbox(Outbox)}</li>
+ * <li>{@link DefaultServer#setRateLimit(RateLimit)}</li>
  * </ul>
  * 
  * @author Donghwan Kim
@@ -62,28 +91,162 @@ public class DefaultServer implements Server {
     private Set<ServerSocket> sockets = new CopyOnWriteArraySet<>();
     private int heartbeat = 20000;
     private int _heartbeat = 5000;
+    private boolean lazyHeartbeat;
+    private Executor dispatchExecutor;
+    private DispatchInterceptor dispatchInterceptor;
+    private int resumeBufferSize;
+    private int resumeBufferLength = 1024 * 1024;
+    private int resumeBufferAge = 60000;
+    // Sockets which can be resumed by id including closed ones
+    private ConcurrentMap<String, DefaultServerSocket> resumables = new ConcurrentHashMap<>();
+    // Closed sockets in order of close time to expire them from resumables
+    private Queue<ClosedSocket> closedResumables = new ConcurrentLinkedQueue<>();
+    private int drainRate = 100;
+    private String drainNotice;
+    private AtomicBoolean draining = new AtomicBoolean();
+    private BufferPool bufferPool;
+    private TopicTrie topics = new TopicTrie();
+    TagIndex tagIndex = new TagIndex();
+    private double statePatchRatio = 0.5;
+    private Outbox outbox;
+    private RateLimit rateLimit;
+    // Requests in progress to be told of replies and closed sockets
+    final Set<Ask> asks = Collections.newSetFromMap(new ConcurrentHashMap<Ask, Boolean>());
+    // Replaced as a whole on registration so that sockets can read it
+    // without locking
+    private AtomicReference<Map<String, List<SocketAction<Object>>>> eventActions =
+        new AtomicReference<>(DefaultServerSocket.protocolActions);
     private Actions<ServerSocket> socketActions = new ConcurrentActions<ServerSocket>()
     .add(new Action<ServerSocket>() {
         @Override
         public void on(final ServerSocket socket) {
             log.trace("{}'s request has opened", socket);
             sockets.add(socket);
-            socket.onclose(new VoidAction() {
-                @Override
-                public void on() {
-                    log.trace("{}'s request has been closed", socket);
-                    sockets.remove(socket);
-                }
-            });
+            // The close action may have run already if the socket was closed
+            // during handshake or replay and then it would be kept forever.
+            // As closed is set before the close action, either that action
+            // or this check removes it
+            if (((DefaultServerSocket) socket).closed) {
+                sockets.remove(socket);
+            }
         }
     });
+    // Shared by sockets not to cost each of them a close action
+    private ResumeBuffer.Limits resumeLimits;
+
+    {
+        on("close", new SocketAction<Void>() {
+            @Override
+            public void on(ServerSocket socket, Void data) {
+                log.trace("{}'s request has been closed", socket);
+                sockets.remove(socket);
+                for (Ask ask : asks) {
+                    ask.closed(socket);
+                }
+                if (((DefaultServerSocket) socket).resumeLimits != null) {
+                    expireResumables((DefaultServerSocket) socket);
+                }
+            }
+        });
+    }
 
     @Override
     public void on(ServerTransport transport) {
+        if (draining.get()) {
+            log.trace("{} is closed as the server is draining", transport);
+            transport.close();
+            return;
+        }
         Map<String, String> map = new LinkedHashMap<>();
         map.put("heartbeat", "" + heartbeat);
         map.put("_heartbeat", "" + _heartbeat);
-        socketActions.fire(new DefaultServerSocket(transport, map));
+        DefaultServerSocket socket = new DefaultServerSocket(transport, map, dispatchExecutor);
+        socket.lazyHeartbeat = lazyHeartbeat;
+        socket.bufferPool = bufferPool;
+        socket.topics = topics;
+        socket.statePatchRatio = statePatchRatio;
+        socket.outbox = outbox;
+        socket.throttle = rateLimit != null ? new Throttle(rateLimit) : null;
+        socket.dispatchInterceptor = dispatchInterceptor;
+        socket.eventActions = eventActions;
+        socket.asks = asks;
+        Map<String, String> params = HttpTransportServer.parseQuery(transport.uri());
+        // Only a client saying it decodes batch frames gets them
+        if ("true".equals(params.get("batch"))) {
+            socket.batchFrames = true;
+            map.put("batch", "true");
+        }
+        List<String> replay = Collections.emptyList();
+        if (resumeBufferSize > 0) {
+            replay = resume(socket, params, map);
+            socket.trackWrites();
+        }
+        socket.handshake(map);
+        for (String text : replay) {
+            transport.send(text);
+            socket.sent(text);
+        }
+        socket.index(tagIndex);
+        socketActions.fire(socket);
+    }
+
+    // Resumes the previous socket given by the client, if any, and returns
+    // events the client missed
+    private List<String> resume(final DefaultServerSocket socket, Map<String, String> params, Map<String, String> handshake) {
+        List<String> replay = Collections.emptyList();
+        synchronized (this) {
+            if (resumeLimits == null) {
+                resumeLimits = new ResumeBuffer.Limits(resumeBufferSize, resumeBufferLength, resumeBufferAge);
+            }
+            socket.resumeLimits = resumeLimits;
+        }
+        String previousId = params.get("resume");
+        String lastEventId = params.get("lastEventId");
+        if (previousId != null && lastEventId != null) {
+            DefaultServerSocket previous = resumables.remove(previousId);
+            List<String> missed = null;
+            if (previous != null) {
+                log.trace("{} resumes {}", socket, previous);
+                // The previous one may not have noticed its disconnection yet
+                previous.close();
+                socket.adopt(previous);
+                try {
+                    // The previous one may not have sent any event
+                    missed = socket.buffer != null ? socket.buffer.since(Integer.parseInt(lastEventId)) : Collections.<String> emptyList();
+                } catch (NumberFormatException e) {
+                    log.trace("{} is not a valid event id", lastEventId);
+                }
+            }
+            if (missed != null) {
+                replay = missed;
+            }
+            handshake.put("resumed", "" + (missed != null));
+        }
+        handshake.put("id", socket.id);
+        resumables.put(socket.id, socket);
+        return replay;
+    }
+
+    // Keeps the given closed socket for resuming and discards expired ones
+    private void expireResumables(DefaultServerSocket socket) {
+        long now = System.currentTimeMillis();
+        closedResumables.offer(new ClosedSocket(socket, now));
+        ClosedSocket closed;
+        while ((closed = closedResumables.peek()) != null && now - closed.time > resumeBufferAge) {
+            if (closedResumables.remove(closed)) {
+                resumables.remove(closed.socket.id, closed.socket);
+            }
+        }
+    }
+
+    // Sends the request of the given ask to the given socket if it's of this
+    // class so that the reply is routed to the ask by the shared reply handler
+    static boolean ask(ServerSocket socket, Ask ask, String event, Object data) {
+        if (!(socket instanceof DefaultServerSocket)) {
+            return false;
+        }
+        ((DefaultServerSocket) socket).ask(ask, event, data);
+        return true;
     }
 
     @Override
@@ -121,21 +284,127 @@ public class DefaultServer implements Server {
 
     @Override
     public Server byTag(String[] names, Action<ServerSocket> action) {
-        List<String> nameList = Arrays.asList(names);
-        for (ServerSocket socket : sockets) {
-            if (socket.tags().containsAll(nameList)) {
+        if (names.length == 0) {
+            for (ServerSocket socket : sockets) {
+                action.on(socket);
+            }
+        } else {
+            int count = select(TagQuery.allOf(names), action);
+            if (count == 0 && outbox != null && names.length == 1 && action instanceof Sentence.SendAction) {
+                Sentence.SendAction send = (Sentence.SendAction) action;
+                final Outbox box = outbox;
+                final String tag = names[0];
+                box.append(tag, send.event, send.data);
+                // A socket tagged in the meantime may have looked into the
+                // outbox before the event was appended
+                select(TagQuery.allOf(names), new Action<ServerSocket>() {
+                    @Override
+                    public void on(ServerSocket socket) {
+                        box.forward(tag, socket);
+                    }
+                });
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Sentence byTag(final TagQuery query) {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                byTag(query, action);
+            }
+        });
+    }
+
+    @Override
+    public Server byTag(TagQuery query, Action<ServerSocket> action) {
+        select(query, action);
+        return this;
+    }
+
+    // Not to be overridden as subclasses may call byTag variants of this class
+    private int select(TagQuery query, Action<ServerSocket> action) {
+        int count = 0;
+        Bitmap bitmap = tagIndex.evaluate(query);
+        for (int i = bitmap.next(0); i >= 0; i = bitmap.next(i + 1)) {
+            DefaultServerSocket socket = (DefaultServerSocket) tagIndex.socket(i);
+            // The ordinal may have been reused by another socket since
+            if (socket != null && query.matches(socket.currentTags())) {
                 action.on(socket);
+                count++;
             }
         }
+        return count;
+    }
+
+    @Override
+    public Sentence byTopic(final String topic) {
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                byTopic(topic, action);
+            }
+        });
+    }
+
+    @Override
+    public Server byTopic(String topic, Action<ServerSocket> action) {
+        for (ServerSocket socket : topics.match(topic)) {
+            action.on(socket);
+        }
         return this;
     }
 
+    @Override
+    public long count() {
+        return tagIndex.counter().value();
+    }
+
+    @Override
+    public long count(String tag) {
+        TagIndex.Counter counter = tagIndex.counter(tag);
+        return counter != null ? counter.value() : 0;
+    }
+
     @Override
     public Server onsocket(Action<ServerSocket> action) {
         socketActions.add(action);
         return this;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <T> Server on(String event, SocketAction<T> action) {
+        Map<String, List<SocketAction<Object>>> map = new HashMap<>(eventActions.get());
+        List<SocketAction<Object>> actions = new ArrayList<>();
+        if (map.containsKey(event)) {
+            actions.addAll(map.get(event));
+        }
+        actions.add((SocketAction<Object>) action);
+        map.put(event, Collections.unmodifiableList(actions));
+        eventActions.set(Collections.unmodifiableMap(map));
+        return this;
+    }
+
+    /**
+     * Starts to drain this server for shutdown. From then on, a new transport
+     * is closed immediately and sockets are closed gradually at the drain rate
+     * so that clients don't reconnect to other servers all at once. If the
+     * drain notice is set, each socket receives the notice event a moment
+     * before it's closed. The given action is called with the number of
+     * remaining sockets periodically until it becomes <code>0</code>. This
+     * method has no effect if called more than once.
+     */
+    public void drain(Action<Integer> progress) {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        log.info("Draining {} sockets at {} sockets per second", sockets.size(), drainRate);
+        SharedScheduler.schedule(new Drain(progress), 0);
+    }
+
     /**
      * A heartbeat interval in milliseconds to maintain a connection alive and
      * prevent server from holding idle connections. The default is
@@ -145,6 +414,140 @@ public class DefaultServer implements Server {
         this.heartbeat = heartbeat;
     }
 
+    /**
+     * An executor to dispatch inbound events of sockets to event handlers
+     * instead of the thread delivering the message, typically the I/O thread
+     * of the underlying server. Each socket has its own mailbox on the executor
+     * so that its events are dispatched one at a time in order while different
+     * sockets are dispatched in parallel. The default is {@code null}, which
+     * dispatches on the delivering thread. See {@link DispatchExecutors}.
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * An interceptor surrounding every dispatch of an inbound event to event
+     * handlers on the thread running them. The default is {@code null}.
+     */
+    public void setDispatchInterceptor(DispatchInterceptor dispatchInterceptor) {
+        this.dispatchInterceptor = dispatchInterceptor;
+    }
+
+    /**
+     * Returns the dispatch interceptor so that another one can chain to it.
+     */
+    public DispatchInterceptor getDispatchInterceptor() {
+        return dispatchInterceptor;
+    }
+
+    /**
+     * The maximum number of recently sent events to be kept per socket so that
+     * a client reconnecting with {@code resume} and {@code lastEventId}
+     * parameters, the id of the previous socket given in the handshake and
+     * the id of the last received event, can receive events it missed in
+     * between. If the missed events are no longer available, {@code resumed}
+     * in the handshake is {@code false} and the client should fetch the state
+     * again. The default is <code>0</code> which disables resuming.
+     */
+    public void setResumeBufferSize(int resumeBufferSize) {
+        this.resumeBufferSize = resumeBufferSize;
+        this.resumeLimits = null;
+    }
+
+    /**
+     * The maximum total length of events to be kept per socket for resuming.
+     * The default is <code>1048576</code> characters.
+     */
+    public void setResumeBufferLength(int resumeBufferLength) {
+        this.resumeBufferLength = resumeBufferLength;
+        this.resumeLimits = null;
+    }
+
+    /**
+     * The maximum age of events and closed sockets to be kept for resuming in
+     * milliseconds. The default is <code>60</code>s.
+     */
+    public void setResumeBufferAge(int resumeBufferAge) {
+        this.resumeBufferAge = resumeBufferAge;
+        this.resumeLimits = null;
+    }
+
+    /**
+     * The number of sockets to be closed per second in draining. The default
+     * is <code>100</code>.
+     */
+    public void setDrainRate(int drainRate) {
+        this.drainRate = drainRate;
+    }
+
+    /**
+     * An event to be sent to each socket before it's closed in draining. The
+     * default is {@code null} which sends nothing.
+     */
+    public void setDrainNotice(String drainNotice) {
+        this.drainNotice = drainNotice;
+    }
+
+    /**
+     * Whether to skip replying to a heartbeat event of the client if the socket
+     * has sent any event since the previous heartbeat event. It saves
+     * heartbeat events on busy sockets but requires the client to regard any
+     * event as proof of the server's liveness. The default is {@code false}.
+     * <p>
+     * Regardless of this option, any message from the client is regarded as
+     * proof of the client's liveness.
+     */
+    public void setLazyHeartbeat(boolean lazyHeartbeat) {
+        this.lazyHeartbeat = lazyHeartbeat;
+    }
+
+    /**
+     * A pool of buffers to serialize outgoing events in. If set, an event to
+     * be sent through a transport implementing {@link Utf8Transport} is
+     * serialized into a pooled buffer as UTF-8 and handed over to the
+     * transport as it is instead of being serialized into a string to be
+     * encoded again by the transport. The default is {@code null}.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * An outbox to store an event sent through {@link Server#byTag(String...)}
+     * with a single tag when no socket has the tag. Stored events are
+     * forwarded to the next socket tagged with the tag via
+     * {@link ServerSocket#tag(String...)}. Note that with
+     * {@link ClusteredServer}, every node without such socket stores the
+     * event. The default is {@code null}.
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * A limit on how fast each socket can send events, which is checked
+     * before a message is parsed. Event limits can't be added to it once
+     * it's set. The default is {@code null} which doesn't limit.
+     */
+    public void setRateLimit(RateLimit rateLimit) {
+        if (rateLimit != null) {
+            rateLimit.inUse = true;
+        }
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * The maximum ratio of the length of a state patch to that of the last
+     * full state of the same key for {@link ServerSocket#sendState(String, Object)}
+     * to send the patch. A longer patch is discarded and the full state is
+     * sent instead. The default is <code>0.5</code> and <code>0</code> disables
+     * patches.
+     */
+    public void setStatePatchRatio(double statePatchRatio) {
+        this.statePatchRatio = statePatchRatio;
+    }
+
     /**
      * To speed up the protocol tests. Not for production use.
      */
@@ -152,107 +555,509 @@ public class DefaultServer implements Server {
         this._heartbeat = _heartbeat;
     }
 
+    // Closes sockets at the drain rate. Each tick is handed off to the shared
+    // workers as closing sockets runs user code and the next tick is scheduled
+    // once it's done so that ticks never overlap
+    private class Drain implements Runnable {
+        private static final int PERIOD = 100;
+        private final Action<Integer> progress;
+        private final Queue<ServerSocket> queue = new ConcurrentLinkedQueue<>(sockets);
+        private final Queue<ServerSocket> noticed = new ConcurrentLinkedQueue<>();
+        private double budget;
+
+        Drain(Action<Integer> progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            SharedScheduler.workers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean done = false;
+                    try {
+                        done = tick();
+                    } finally {
+                        if (!done) {
+                            SharedScheduler.schedule(Drain.this, PERIOD);
+                        }
+                    }
+                }
+            });
+        }
+
+        // Returns true if all sockets are drained
+        private boolean tick() {
+            // Sockets noticed at the previous tick have had time to receive
+            // the notice
+            ServerSocket socket;
+            while ((socket = noticed.poll()) != null) {
+                close(socket);
+            }
+            budget += drainRate * PERIOD / 1000.0;
+            while (budget >= 1 && (socket = queue.poll()) != null) {
+                budget--;
+                if (drainNotice != null) {
+                    try {
+                        socket.send(drainNotice);
+                    } catch (RuntimeException e) {
+                        log.error("Failed to send the drain notice to {}", socket, e);
+                    }
+                    noticed.offer(socket);
+                } else {
+                    close(socket);
+                }
+            }
+            if (queue.isEmpty()) {
+                budget = 0;
+            }
+            int remaining = sockets.size();
+            try {
+                progress.on(remaining);
+            } catch (RuntimeException e) {
+                log.error("Failed to report the drain progress", e);
+            }
+            if (remaining == 0) {
+                log.info("Drained all sockets");
+                return true;
+            }
+            return false;
+        }
+
+        private void close(ServerSocket socket) {
+            try {
+                socket.close();
+            } catch (RuntimeException e) {
+                log.error("Failed to close {} while draining", socket, e);
+            }
+        }
+    }
+
+    private static class ClosedSocket {
+        final DefaultServerSocket socket;
+        final long time;
+
+        ClosedSocket(DefaultServerSocket socket, long time) {
+            this.socket = socket;
+            this.time = time;
+        }
+    }
+
     private static class DefaultServerSocket implements ServerSocket {
+        private static final Executor directExecutor = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+        // Shared by sockets as constructing it and its serializers per socket
+        // costs a lot of heap
+        private static final ObjectMapper mapper = new ObjectMapper();
+        // Handlers of the protocol events, which are the initial entries of
+        // the server's event actions, for sockets not to have their own
+        static final Map<String, List<SocketAction<Object>>> protocolActions;
+        static {
+            Map<String, List<SocketAction<Object>>> map = new HashMap<>();
+            map.put("reply", Collections.<SocketAction<Object>> singletonList(new SocketAction<Object>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void on(ServerSocket s, Object data) {
+                    DefaultServerSocket socket = (DefaultServerSocket) s;
+                    Map<String, Object> info = (Map<String, Object>) data;
+                    Map<String, Map<String, Action<Object>>> callbacksMap = socket.callbacksMap;
+                    Map<String, Action<Object>> callbacks = callbacksMap != null ? callbacksMap.remove(info.get("id")) : null;
+                    if (callbacks == null) {
+                        // It may be a reply to a request in progress
+                        if (!socket.asks.isEmpty()) {
+                            socket.replied(info);
+                        }
+                        return;
+                    }
+                    Action<Object> action = (Boolean) info.get("exception") ? callbacks.get("rejected") : callbacks.get("resolved");
+                    action.on(info.get("data"));
+                }
+            }));
+            map.put("heartbeat", Collections.<SocketAction<Object>> singletonList(new SocketAction<Object>() {
+                @Override
+                public void on(ServerSocket s, Object data) {
+                    DefaultServerSocket socket = (DefaultServerSocket) s;
+                    if (!socket.lazyHeartbeat || !socket.sentSinceHeartbeat) {
+                        socket.send("heartbeat", null, Priority.CONTROL);
+                    }
+                    socket.sentSinceHeartbeat = false;
+                }
+            }));
+            protocolActions = Collections.unmodifiableMap(map);
+        }
         private final ServerTransport transport;
-        private ObjectMapper mapper = new ObjectMapper();
+        private final Executor dispatcher;
+        private String id = UUID.randomUUID().toString();
+        // Created on the first event sent if resuming is enabled
+        private volatile ResumeBuffer buffer;
+        private ResumeBuffer.Limits resumeLimits;
         private AtomicInteger eventId = new AtomicInteger();
-        private Set<String> tags = new CopyOnWriteArraySet<>();
-        private ConcurrentMap<String, Actions<Object>> actionsMap = new ConcurrentHashMap<>();
-        private ConcurrentMap<String, Map<String, Action<Object>>> callbacksMap = new ConcurrentHashMap<>();
-        private AtomicReference<Timer> heartbeatTimer = new AtomicReference<>();
+        // Most sockets never use some of the following so they are created
+        // on first use
+        private volatile IndexedTags tags;
+        private TagIndex index;
+        private int ordinal = -1;
+        private volatile ConcurrentMap<String, Actions<Object>> actionsMap;
+        private volatile ConcurrentMap<String, Map<String, Action<Object>>> callbacksMap;
+        private volatile Set<String> subscriptions;
+        private volatile boolean closed;
+        // Runs work triggered by the scheduler, created on first use
+        private Executor timedDispatcher;
+        private AtomicReference<ScheduledFuture<?>> heartbeatTask = new AtomicReference<>();
+        private volatile long lastReceived = System.currentTimeMillis();
+        private volatile boolean sentSinceHeartbeat;
+        private boolean lazyHeartbeat;
+        private BufferPool bufferPool;
+        private TopicTrie topics;
+        private double statePatchRatio;
+        private Outbox outbox;
+        private Throttle throttle;
+        // Created on the first message delayed by the throttle
+        private volatile DelayedDispatcher delayedDispatcher;
+        private DispatchInterceptor dispatchInterceptor;
+        private AtomicReference<Map<String, List<SocketAction<Object>>>> eventActions;
+        private Set<Ask> asks;
+        // Whether the client decodes a batch sent as a single frame
+        private boolean batchFrames;
+        // The last state sent and the length of the last full state per key
+        // which are not taken over by resume, created on the first state
+        private Map<String, JsonNode> states;
+        private Map<String, Integer> snapshotLengths;
 
-        public DefaultServerSocket(final ServerTransport transport, Map<String, String> query) {
+        public DefaultServerSocket(final ServerTransport transport, Map<String, String> query, Executor executor) {
             this.transport = transport;
-            actionsMap.put("error", new ConcurrentActions<>());
+            this.dispatcher = executor != null ? new SerialExecutor(executor) : directExecutor;
             transport.onerror(new Action<Throwable>() {
                 @Override
-                public void on(Throwable throwable) {
-                    actionsMap.get("error").fire(throwable);
+                public void on(final Throwable throwable) {
+                    dispatcher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            fire("error", throwable);
+                        }
+                    });
                 }
             });
-            actionsMap.put("close", new ConcurrentActions<>(new Actions.Options().once(true).memory(true)));
             transport.onclose(new VoidAction() {
                 @Override
                 public void on() {
-                    actionsMap.get("close").fire();
+                    dispatcher.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!closed) {
+                                closed = true;
+                                cleanUp();
+                                fire("close", null);
+                            }
+                        }
+                    });
                 }
             });
             transport.ontext(new Action<String>() {
                 @Override
-                public void on(String text) {
-                    final Map<String, Object> event = parseEvent(text);
-                    Actions<Object> actions = actionsMap.get(event.get("type"));
-                    if (actions != null) {
-                        if ((Boolean) event.get("reply")) {
-                            final AtomicBoolean sent = new AtomicBoolean();
-                            actions.fire(new Reply<Object>() {
-                                @Override
-                                public Object data() {
-                                    return event.get("data");
-                                }
-
-                                @Override
-                                public void resolve() {
-                                    resolve(null);
-                                }
-
-                                @Override
-                                public void resolve(Object value) {
-                                    sendReply(value, false);
-                                }
-
-                                @Override
-                                public void reject() {
-                                    reject(null);
-                                }
-
-                                @Override
-                                public void reject(Object value) {
-                                    sendReply(value, true);
-                                }
-
-                                private void sendReply(Object value, boolean exception) {
-                                    if (sent.compareAndSet(false, true)) {
-                                        Map<String, Object> result = new LinkedHashMap<String, Object>();
-                                        result.put("id", event.get("id"));
-                                        result.put("data", value);
-                                        result.put("exception", exception);
-                                        send("reply", result);
+                public void on(final String text) {
+                    lastReceived = System.currentTimeMillis();
+                    final Runnable task = new Runnable() {
+                        @Override
+                        public void run() {
+                            if (dispatchInterceptor == null) {
+                                dispatch(text);
+                            } else {
+                                dispatchInterceptor.dispatch(DefaultServerSocket.this, text, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        dispatch(text);
                                     }
-                                }
-                            });
-                        } else {
-                            actions.fire(event.get("data"));
+                                });
+                            }
+                        }
+                    };
+                    long wait = throttle != null ? throttle.admit(text) : 0;
+                    if (wait == Throttle.REJECT) {
+                        if (throttle.limit.overload == RateLimit.Overload.CLOSE) {
+                            close();
                         }
+                    } else if (wait == 0 && (delayedDispatcher == null || !delayedDispatcher.isPending())) {
+                        dispatcher.execute(task);
+                    } else {
+                        // Not to overtake messages delayed earlier
+                        delayedDispatcher().dispatch(task, wait);
                     }
                 }
             });
-            on("reply", new Action<Map<String, Object>>() {
+            transport.onbinary(new Action<ByteBuffer>() {
                 @Override
-                public void on(Map<String, Object> info) {
-                    Map<String, Action<Object>> callbacks = callbacksMap.remove(info.get("id"));
-                    Action<Object> action = (Boolean) info.get("exception") ? callbacks.get("rejected") : callbacks.get("resolved");
-                    action.on(info.get("data"));
+                public void on(ByteBuffer binary) {
+                    lastReceived = System.currentTimeMillis();
                 }
             });
-            final int heartbeat = Integer.parseInt(query.get("heartbeat"));
-            heartbeatTimer.set(createCloseTimer(heartbeat));
-            on("heartbeat", new VoidAction() {
+            // A pong proves the client alive as well as a heartbeat event
+            transport.onpong(new VoidAction() {
                 @Override
                 public void on() {
-                    heartbeatTimer.getAndSet(createCloseTimer(heartbeat)).cancel();
-                    send("heartbeat");
+                    lastReceived = System.currentTimeMillis();
                 }
             });
-            on("close", new VoidAction() {
-                @Override
-                public void on() {
-                    heartbeatTimer.get().cancel();
+            final int heartbeat = Integer.parseInt(query.get("heartbeat"));
+            scheduleHeartbeatCheck(heartbeat, heartbeat);
+        }
+
+        private void cleanUp() {
+            heartbeatTask.get().cancel(false);
+            unindex();
+            Set<String> patterns = subscriptions;
+            if (patterns != null) {
+                for (String pattern : patterns) {
+                    topics.unsubscribe(pattern, this);
                 }
-            });
+            }
+        }
+
+        void handshake(Map<String, String> query) {
             transport.send("?" + HttpTransportServer.formatQuery(query));
         }
 
+        // Lets the resume buffer know the order in which the client receives
+        // events as a priority transport may reorder them
+        void trackWrites() {
+            if (transport instanceof PriorityTransport) {
+                ((PriorityTransport) transport).onwrite(new Action<String>() {
+                    @Override
+                    public void on(String text) {
+                        ResumeBuffer b = buffer;
+                        if (b != null) {
+                            b.written(text);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Other transports write events in order they are sent
+        void sent(String text) {
+            ResumeBuffer b = buffer;
+            if (b != null && !(transport instanceof PriorityTransport)) {
+                b.written(text);
+            }
+        }
+
+        // Takes over the identity, sent events and pending callbacks
+        void adopt(DefaultServerSocket previous) {
+            id = previous.id;
+            buffer = previous.buffer;
+            previous.buffer = null;
+            eventId.set(previous.eventId.get());
+            if (previous.callbacksMap != null) {
+                callbacksMap().putAll(previous.callbacksMap);
+            }
+        }
+
+        private ResumeBuffer buffer() {
+            ResumeBuffer b = buffer;
+            if (b == null) {
+                synchronized (this) {
+                    if (buffer == null) {
+                        buffer = new ResumeBuffer(resumeLimits);
+                    }
+                    b = buffer;
+                }
+            }
+            return b;
+        }
+
+        private ConcurrentMap<String, Map<String, Action<Object>>> callbacksMap() {
+            if (callbacksMap == null) {
+                synchronized (this) {
+                    if (callbacksMap == null) {
+                        callbacksMap = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+            return callbacksMap;
+        }
+
+        private ConcurrentMap<String, Actions<Object>> actionsMap() {
+            if (actionsMap == null) {
+                synchronized (this) {
+                    if (actionsMap == null) {
+                        actionsMap = new ConcurrentHashMap<>();
+                    }
+                }
+            }
+            return actionsMap;
+        }
+
+        private IndexedTags indexedTags() {
+            if (tags == null) {
+                synchronized (this) {
+                    if (tags == null) {
+                        tags = new IndexedTags();
+                    }
+                }
+            }
+            return tags;
+        }
+
+        // Tags without creating the set
+        Set<String> currentTags() {
+            IndexedTags t = tags;
+            return t != null ? t : Collections.<String> emptySet();
+        }
+
+        synchronized void index(TagIndex index) {
+            // The socket may have been closed during handshake
+            if (!closed) {
+                this.index = index;
+                this.ordinal = index.add(this);
+                if (tags != null) {
+                    for (String tag : tags.set) {
+                        index.tag(ordinal, tag);
+                    }
+                }
+            }
+        }
+
+        private synchronized void unindex() {
+            if (ordinal >= 0) {
+                index.remove(ordinal, currentTags());
+                ordinal = -1;
+            }
+        }
+
+        // Tags reflecting changes to the server's tag index while the socket is
+        // indexed
+        private class IndexedTags extends AbstractSet<String> {
+            private Set<String> set = new CopyOnWriteArraySet<>();
+
+            @Override
+            public boolean add(String tag) {
+                synchronized (DefaultServerSocket.this) {
+                    boolean added = set.add(tag);
+                    if (added && ordinal >= 0) {
+                        index.tag(ordinal, tag);
+                    }
+                    return added;
+                }
+            }
+
+            @Override
+            public boolean remove(Object tag) {
+                synchronized (DefaultServerSocket.this) {
+                    boolean removed = set.remove(tag);
+                    if (removed && ordinal >= 0) {
+                        index.untag(ordinal, (String) tag);
+                    }
+                    return removed;
+                }
+            }
+
+            @Override
+            public boolean contains(Object tag) {
+                return set.contains(tag);
+            }
+
+            @Override
+            public int size() {
+                return set.size();
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                final Iterator<String> iterator = set.iterator();
+                return new Iterator<String>() {
+                    String last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return last = iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        IndexedTags.this.remove(last);
+                        last = null;
+                    }
+                };
+            }
+        }
+
+        private void dispatch(String text) {
+            final Map<String, Object> event = parseEvent(text);
+            String type = (String) event.get("type");
+            Map<String, Actions<Object>> map = actionsMap;
+            if (!eventActions.get().containsKey(type) && (map == null || !map.containsKey(type))) {
+                return;
+            }
+            if ((Boolean) event.get("reply")) {
+                final AtomicBoolean sent = new AtomicBoolean();
+                fire(type, new Reply<Object>() {
+                    @Override
+                    public Object data() {
+                        return event.get("data");
+                    }
+
+                    @Override
+                    public void resolve() {
+                        resolve(null);
+                    }
+
+                    @Override
+                    public void resolve(Object value) {
+                        sendReply(value, false);
+                    }
+
+                    @Override
+                    public void reject() {
+                        reject(null);
+                    }
+
+                    @Override
+                    public void reject(Object value) {
+                        sendReply(value, true);
+                    }
+
+                    private void sendReply(Object value, boolean exception) {
+                        if (sent.compareAndSet(false, true)) {
+                            Map<String, Object> result = new LinkedHashMap<String, Object>();
+                            result.put("id", event.get("id"));
+                            result.put("data", value);
+                            result.put("exception", exception);
+                            send("reply", result, Priority.CONTROL);
+                        }
+                    }
+                });
+            } else {
+                fire(type, event.get("data"));
+            }
+        }
+
+        // Fires the server's actions and then the socket's actions
+        private void fire(String type, Object data) {
+            List<SocketAction<Object>> actions = eventActions.get().get(type);
+            if (actions != null) {
+                for (SocketAction<Object> action : actions) {
+                    action.on(this, data);
+                }
+            }
+            // Close actions are created if not yet to remember it's fired
+            Actions<Object> socketActions = type.equals("close") ? actions(type) : actionsMap != null ? actionsMap.get(type) : null;
+            if (socketActions != null) {
+                socketActions.fire(data);
+            }
+        }
+
         @Override
         public String uri() {
             return transport.uri();
@@ -260,22 +1065,30 @@ public class DefaultServer implements Server {
 
         @Override
         public Set<String> tags() {
-            return tags;
+            return indexedTags();
         }
 
         @SuppressWarnings("unchecked")
         @Override
         public <T> ServerSocket on(String event, Action<T> action) {
-            Actions<Object> actions = actionsMap.get(event);
+            actions(event).add((Action<Object>) action);
+            return this;
+        }
+
+        private Actions<Object> actions(String event) {
+            ConcurrentMap<String, Actions<Object>> map = actionsMap();
+            Actions<Object> actions = map.get(event);
             if (actions == null) {
-                Actions<Object> value = new ConcurrentActions<>();
-                actions = actionsMap.putIfAbsent(event, value);
+                // Close actions added after close are called right away
+                Actions<Object> value = event.equals("close") ?
+                    new ConcurrentActions<>(new Actions.Options().once(true).memory(true)) :
+                    new ConcurrentActions<>();
+                actions = map.putIfAbsent(event, value);
                 if (actions == null) {
                     actions = value;
                 }
             }
-            actions.add((Action<Object>) action);
-            return this;
+            return actions;
         }
 
         @Override
@@ -291,7 +1104,7 @@ public class DefaultServer implements Server {
         @SuppressWarnings("unchecked")
         @Override
         public <T> ServerSocket off(String event, Action<T> action) {
-            Actions<Object> actions = actionsMap.get(event);
+            Actions<Object> actions = actionsMap != null ? actionsMap.get(event) : null;
             if (actions != null) {
                 actions.remove((Action<Object>) action);
             }
@@ -305,35 +1118,171 @@ public class DefaultServer implements Server {
 
         @Override
         public ServerSocket send(String event, Object data) {
-            return send(event, data, null);
+            return send(event, data, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public ServerSocket send(String event, Object data, Priority priority) {
+            return send(event, data, null, null, priority);
         }
 
         @Override
         public <T> ServerSocket send(String type, Object data, Action<T> resolved) {
             return send(type, data, resolved, null);
         }
-        
-        @SuppressWarnings("unchecked")
+
         @Override
         public <T, U> ServerSocket send(String type, Object data, Action<T> resolved, Action<U> rejected) {
-            String id = "" + eventId.incrementAndGet();
-            Map<String, Object> event = new LinkedHashMap<String, Object>();
-            event.put("id", id);
-            event.put("type", type);
-            event.put("data", data);
-            event.put("reply", resolved != null || rejected != null);
+            return send(type, data, resolved, rejected, Priority.INTERACTIVE);
+        }
 
-            String text = stringifyEvent(event);
-            transport.send(text);
+        @SuppressWarnings("unchecked")
+        private <T, U> ServerSocket send(String type, Object data, Action<T> resolved, Action<U> rejected, Priority priority) {
+            int seq = eventId.incrementAndGet();
+            sendEvent(seq, type, data, resolved != null || rejected != null, priority);
             if (resolved != null || rejected != null) {
                 Map<String, Action<Object>> cbs = new LinkedHashMap<String, Action<Object>>();
                 cbs.put("resolved", (Action<Object>) resolved);
                 cbs.put("rejected", (Action<Object>) rejected);
-                callbacksMap.put(id, cbs);
+                callbacksMap().put("" + seq, cbs);
             }
             return this;
         }
 
+        // Sends a request whose reply is gathered by the given ask instead of
+        // callbacks
+        void ask(Ask ask, String type, Object data) {
+            int index = ask.add(this, asks);
+            if (index < 0) {
+                return;
+            }
+            int seq = eventId.incrementAndGet();
+            ask.sent(index, seq);
+            sendEvent(seq, type, data, true, Priority.INTERACTIVE);
+            // The close handler may have run before the ask was registered
+            if (closed) {
+                ask.closed(this);
+            }
+        }
+
+        private void replied(Map<String, Object> info) {
+            int seq;
+            try {
+                seq = Integer.parseInt((String) info.get("id"));
+            } catch (RuntimeException e) {
+                return;
+            }
+            for (Ask ask : asks) {
+                if (ask.replied(this, seq, info.get("data"), (Boolean) info.get("exception"))) {
+                    return;
+                }
+            }
+        }
+
+        private void sendEvent(int seq, String type, Object data, boolean reply, Priority priority) {
+            Map<String, Object> event = new LinkedHashMap<String, Object>();
+            event.put("id", "" + seq);
+            event.put("type", type);
+            event.put("data", data);
+            event.put("reply", reply);
+
+            // The resume buffer needs the event as a string
+            if (bufferPool != null && resumeLimits == null && transport instanceof Utf8Transport) {
+                PooledBuffer text = writeEvent(event);
+                if (transport instanceof PriorityTransport) {
+                    ((PriorityTransport) transport).send(text, priority);
+                } else {
+                    ((Utf8Transport) transport).send(text);
+                }
+                sentSinceHeartbeat = true;
+            } else {
+                sendText(seq, type, stringifyEvent(event), priority);
+            }
+        }
+
+        @Override
+        public ServerSocket send(Batch batch) {
+            int size = batch.size();
+            if (size == 0) {
+                return this;
+            }
+            if (!batchFrames) {
+                for (Map<String, Object> event : batch.events()) {
+                    send((String) event.get("type"), event.get("data"));
+                }
+                return this;
+            }
+            int last = eventId.addAndGet(size);
+            String head = "[" + (last - size + 1);
+            if (bufferPool != null && resumeLimits == null && transport instanceof Utf8Transport) {
+                PooledBuffer data = bufferPool.acquire();
+                data.append(head.getBytes(StandardCharsets.UTF_8)).append(batch.bytes());
+                ((Utf8Transport) transport).send(data);
+            } else {
+                String text = head + batch.text();
+                if (resumeLimits != null) {
+                    // The client acknowledges the whole frame with the last id
+                    buffer().add(last, text);
+                }
+                transport.send(text);
+                sent(text);
+            }
+            sentSinceHeartbeat = true;
+            return this;
+        }
+
+        @Override
+        public ServerSocket sendState(String key, Object state) {
+            JsonNode document = mapper.valueToTree(state);
+            // Patches must be sent in order they are computed
+            synchronized (this) {
+                if (states == null) {
+                    states = new HashMap<>();
+                    snapshotLengths = new HashMap<>();
+                }
+                JsonNode last = states.put(key, document);
+                Integer snapshotLength = snapshotLengths.get(key);
+                ObjectNode patch = null;
+                if (last != null && statePatchRatio > 0) {
+                    patch = MergePatch.diff(last, document);
+                }
+                int seq = eventId.incrementAndGet();
+                Map<String, Object> event = new LinkedHashMap<String, Object>();
+                event.put("id", "" + seq);
+                event.put("type", key);
+                event.put("data", patch != null ? patch : document);
+                event.put("reply", false);
+                event.put("state", patch != null ? "patch" : "snapshot");
+                String text = stringifyEvent(event);
+                if (patch != null && text.length() > snapshotLength * statePatchRatio) {
+                    event.put("data", document);
+                    event.put("state", "snapshot");
+                    text = stringifyEvent(event);
+                    patch = null;
+                }
+                if (patch == null) {
+                    snapshotLengths.put(key, text.length());
+                }
+                sendText(seq, key, text, Priority.INTERACTIVE);
+            }
+            return this;
+        }
+
+        private void sendText(int seq, String type, String text, Priority priority) {
+            if (resumeLimits != null && !type.equals("heartbeat")) {
+                buffer().add(seq, text);
+            }
+            if (transport instanceof PriorityTransport) {
+                ((PriorityTransport) transport).send(text, priority);
+            } else {
+                transport.send(text);
+                if (!type.equals("heartbeat")) {
+                    sent(text);
+                }
+            }
+            sentSinceHeartbeat = true;
+        }
+
         @Override
         public void close() {
             transport.close();
@@ -341,13 +1290,57 @@ public class DefaultServer implements Server {
 
         @Override
         public ServerSocket tag(String... names) {
-            tags.addAll(Arrays.asList(names));
+            for (String name : names) {
+                if (indexedTags().add(name) && outbox != null) {
+                    outbox.forward(name, this);
+                }
+            }
             return this;
         }
 
         @Override
         public ServerSocket untag(String... names) {
-            tags.removeAll(Arrays.asList(names));
+            IndexedTags t = tags;
+            if (t != null) {
+                t.removeAll(Arrays.asList(names));
+            }
+            return this;
+        }
+
+        @Override
+        public ServerSocket subscribe(String... patterns) {
+            if (subscriptions == null) {
+                synchronized (this) {
+                    if (subscriptions == null) {
+                        subscriptions = new CopyOnWriteArraySet<>();
+                    }
+                }
+            }
+            for (String pattern : patterns) {
+                if (subscriptions.add(pattern)) {
+                    topics.subscribe(pattern, this);
+                }
+            }
+            // A subscription added after close shouldn't remain
+            if (closed) {
+                for (String pattern : patterns) {
+                    topics.unsubscribe(pattern, this);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public ServerSocket unsubscribe(String... patterns) {
+            Set<String> set = subscriptions;
+            if (set == null) {
+                return this;
+            }
+            for (String pattern : patterns) {
+                if (set.remove(pattern)) {
+                    topics.unsubscribe(pattern, this);
+                }
+            }
             return this;
         }
 
@@ -356,6 +1349,17 @@ public class DefaultServer implements Server {
             return ServerTransport.class.isAssignableFrom(clazz) ? clazz.cast(transport) : null;
         }
         
+        private PooledBuffer writeEvent(Map<String, Object> event) {
+            PooledBuffer data = bufferPool.acquire();
+            try {
+                mapper.writeValue(data.outputStream(), event);
+            } catch (IOException e) {
+                data.release();
+                throw new RuntimeException(e);
+            }
+            return data;
+        }
+
         private Map<String, Object> parseEvent(String text) {
             try {
                 return mapper.readValue(text, new TypeReference<Map<String, Object>>() {});
@@ -372,16 +1376,50 @@ public class DefaultServer implements Server {
             }
         }
 
-        private Timer createCloseTimer(int heartbeat) {
-            Timer timer = new Timer(true);
-            timer.schedule(new TimerTask() {
+        // Instead of rescheduling on every message, the check reschedules
+        // itself if any message has been received in the meantime
+        private void scheduleHeartbeatCheck(final int heartbeat, long delay) {
+            heartbeatTask.set(SharedScheduler.schedule(new Runnable() {
                 @Override
                 public void run() {
-                    actionsMap.get("error").fire(new HeartbeatFailedException());
-                    close();
+                    if (closed) {
+                        return;
+                    }
+                    long idle = System.currentTimeMillis() - lastReceived;
+                    if (idle < heartbeat) {
+                        scheduleHeartbeatCheck(heartbeat, heartbeat - idle);
+                    } else {
+                        // Handlers run on the socket's executor, never on the
+                        // scheduler thread
+                        timedDispatcher().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    fire("error", new HeartbeatFailedException());
+                                } finally {
+                                    close();
+                                }
+                            }
+                        });
+                    }
                 }
-            }, heartbeat);
-            return timer;
+            }, delay));
+        }
+
+        private synchronized DelayedDispatcher delayedDispatcher() {
+            if (delayedDispatcher == null) {
+                delayedDispatcher = new DelayedDispatcher(timedDispatcher());
+            }
+            return delayedDispatcher;
+        }
+
+        // The socket's executor or, if there is none, a mailbox on the shared
+        // workers so that work triggered by the scheduler runs one at a time
+        private synchronized Executor timedDispatcher() {
+            if (timedDispatcher == null) {
+                timedDispatcher = dispatcher != directExecutor ? dispatcher : new SerialExecutor(SharedScheduler.workers());
+            }
+            return timedDispatcher;
         }
     }
 
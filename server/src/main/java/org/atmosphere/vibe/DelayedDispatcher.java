@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.atmosphere.vibe.internal.SharedScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches messages of a socket delayed by {@link Throttle} in order they
+ * arrived. A message is never dispatched before one delayed earlier even if
+ * it has to wait less, and a message which doesn't have to wait is
+ * dispatched through it as well while any delayed one is pending.
+ * <p>
+ * A task the executor rejects is dropped just like a message the executor
+ * rejects without delay.
+ *
+ * @author Donghwan Kim
+ */
+class DelayedDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(DelayedDispatcher.class);
+    private final Executor executor;
+    // Tasks in order of arrival whose due times never decrease
+    private final Queue<Delayed> queue = new ArrayDeque<>();
+    private long lastDue = Long.MIN_VALUE;
+    // The number of tasks delayed and not yet run
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    DelayedDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns true if there are tasks delayed and not yet run.
+     */
+    boolean isPending() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * Dispatches the given task after the given time in nanoseconds or once
+     * tasks delayed earlier are dispatched.
+     */
+    void dispatch(final Runnable task, long wait) {
+        pending.incrementAndGet();
+        Runnable counted = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        };
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long due = Math.max(now + wait, lastDue);
+            lastDue = due;
+            queue.offer(new Delayed(counted, due));
+            // Rounded up not to wake up before the due time
+            delay = TimeUnit.NANOSECONDS.toMillis(due - now) + 1;
+        }
+        SharedScheduler.schedule(drain, delay);
+    }
+
+    // Hands off every due task in order. The scheduler thread only hands
+    // them off to the executor
+    private synchronized void drain() {
+        long now = System.nanoTime();
+        Delayed delayed;
+        while ((delayed = queue.peek()) != null && delayed.due - now <= 0) {
+            queue.poll();
+            try {
+                executor.execute(delayed.task);
+            } catch (RejectedExecutionException e) {
+                // The task never runs so it's no longer pending either.
+                // Otherwise every later message would wait behind it
+                pending.decrementAndGet();
+                log.error("Failed to dispatch {}", delayed.task, e);
+            }
+        }
+    }
+
+    private static class Delayed {
+        final Runnable task;
+        final long due;
+
+        Delayed(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for executors to be used in
+ * {@link DefaultServer#setDispatchExecutor(java.util.concurrent.Executor)}.
+ *
+ * @author Donghwan Kim
+ */
+public class DispatchExecutors {
+
+    private DispatchExecutors() {}
+
+    /**
+     * Creates an executor starting a virtual thread for each task if the
+     * running JVM supports virtual threads, and a pool of daemon threads twice
+     * as many as available processors otherwise.
+     */
+    public static ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return newFixedExecutor(Runtime.getRuntime().availableProcessors() * 2);
+        }
+    }
+
+    /**
+     * Creates an executor using the given number of daemon threads.
+     */
+    public static ExecutorService newFixedExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vibe-dispatch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
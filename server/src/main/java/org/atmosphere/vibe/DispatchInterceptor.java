@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+/**
+ * Surrounds dispatching an inbound event of a socket to event handlers,
+ * registered through {@link DefaultServer#setDispatchInterceptor(DispatchInterceptor)}
+ * to measure dispatches for example. It's called on the thread running
+ * handlers, that is, within {@link DefaultServer#setDispatchExecutor(java.util.concurrent.Executor)}
+ * if set.
+ *
+ * @author Donghwan Kim
+ */
+public interface DispatchInterceptor {
+
+    /**
+     * Dispatches the given message received by the given socket by running
+     * the given task, which must be run once on the calling thread.
+     */
+    void dispatch(ServerSocket socket, String text, Runnable task);
+
+}
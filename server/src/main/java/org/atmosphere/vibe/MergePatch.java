@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Computes a JSON merge patch, RFC 7386, turning one document into another.
+ * In a merge patch, an object member whose value is {@code null} removes the
+ * member, a nested object is merged recursively and any other value
+ * including an array replaces the existing one.
+ *
+ * @author Donghwan Kim
+ */
+class MergePatch {
+
+    private MergePatch() {}
+
+    /**
+     * Returns a merge patch turning the given source into the given target,
+     * which is empty if they are equal, or {@code null} if a merge patch
+     * can't express it, that is to say, either is not an object or the target
+     * has a {@code null} member which is not in the source.
+     */
+    static ObjectNode diff(JsonNode source, JsonNode target) {
+        if (!source.isObject() || !target.isObject()) {
+            return null;
+        }
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        Iterator<String> names = source.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!target.has(name)) {
+                patch.putNull(name);
+            }
+        }
+        Iterator<Entry<String, JsonNode>> fields = target.fields();
+        while (fields.hasNext()) {
+            Entry<String, JsonNode> field = fields.next();
+            JsonNode from = source.get(field.getKey());
+            JsonNode to = field.getValue();
+            if (to.equals(from)) {
+                continue;
+            }
+            if (from != null && from.isObject() && to.isObject()) {
+                ObjectNode nested = diff(from, to);
+                if (nested == null) {
+                    return null;
+                }
+                patch.set(field.getKey(), nested);
+            } else {
+                // Applying a patch drops null members of a replacing object
+                if (hasNullMember(to)) {
+                    return null;
+                }
+                patch.set(field.getKey(), to);
+            }
+        }
+        return patch;
+    }
+
+    private static boolean hasNullMember(JsonNode node) {
+        if (node.isNull()) {
+            return true;
+        }
+        if (node.isObject()) {
+            for (JsonNode value : node) {
+                if (hasNullMember(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.atmosphere.vibe.platform.action.VoidAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A durable outbox for events sent to a tag no socket has. Such events are
+ * appended to a log consisting of memory-mapped segment files in the given
+ * directory and forwarded in order to the next socket tagged with the tag.
+ * <p>
+ * The log is append-only. A forwarded event is not removed but followed by a
+ * record acknowledging it so that it's not forwarded again after restart. A
+ * segment is deleted as a whole once its last record gets older than the
+ * time to live and an event older than that is never forwarded.
+ * <p>
+ * Events are acknowledged only once they have been handed to the socket while
+ * it's open. Those the socket closed before taking are kept for the next
+ * socket tagged with the tag, so an event may be forwarded more than once but
+ * isn't lost.
+ * <p>
+ * Appended records are written to the page cache and then to the disk by the
+ * operating system. {@link Outbox#close()} forces them to the disk.
+ * <p>
+ * The following options are configurable and must be set before use.
+ * <ul>
+ * <li>{@link Outbox#setSegmentSize(int)}</li>
+ * <li>{@link Outbox#setTimeToLive(long)}</li>
+ * </ul>
+ * Instances may be accessed by multiple threads.
+ *
+ * @author Donghwan Kim
+ * @see DefaultServer#setOutbox(Outbox)
+ */
+public class Outbox implements Closeable {
+
+    private static final byte MESSAGE = 1;
+    private static final byte ACK = 2;
+    // length, kind, time and length of tag
+    private static final int HEADER = 4 + 1 + 8 + 2;
+    private final Logger log = LoggerFactory.getLogger(Outbox.class);
+    private final File directory;
+    private ObjectMapper mapper = new ObjectMapper();
+    private int segmentSize = 16 * 1024 * 1024;
+    private long timeToLive = 24 * 60 * 60 * 1000L;
+    private TreeMap<Integer, Segment> segments;
+    // Positions of events not forwarded yet per tag in order they were
+    // appended where a position is the segment id followed by the offset.
+    // Lists are accessed with the lock but the map is checked without it so
+    // that tagging a socket doesn't contend for the lock
+    private Map<String, List<Long>> index = new ConcurrentHashMap<>();
+    // Whether the index has been rebuilt from existing segments
+    private volatile boolean opened;
+
+    /**
+     * Creates an outbox storing segments in the given directory.
+     */
+    public Outbox(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The size of a segment file in bytes and accordingly the maximum size of
+     * an event. The default is <code>16777216</code>.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * The time in milliseconds an event can be forwarded within. The default
+     * is <code>86400000</code>.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Appends the given event to be forwarded to the next socket tagged with
+     * the given tag.
+     */
+    synchronized void append(String tag, String type, Object data) {
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("type", type);
+        event.put("data", data);
+        try {
+            open();
+            long position = write(MESSAGE, tag, mapper.writeValueAsBytes(event));
+            List<Long> positions = index.get(tag);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                index.put(tag, positions);
+            }
+            positions.add(position);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forwards events appended for the given tag to the given socket and
+     * acknowledges those handed to the socket while it's open.
+     */
+    void forward(String tag, ServerSocket socket) {
+        // Most tags have nothing to forward
+        if (opened && !index.containsKey(tag)) {
+            return;
+        }
+        List<Long> positions;
+        List<Map<String, Object>> events = new ArrayList<>();
+        synchronized (this) {
+            try {
+                open();
+                positions = index.remove(tag);
+                if (positions == null) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                for (long position : positions) {
+                    Map<String, Object> event = null;
+                    Segment segment = segments.get((int) (position >>> 32));
+                    if (segment != null) {
+                        MappedByteBuffer buffer = segment.buffer;
+                        int offset = (int) position;
+                        int length = buffer.getInt(offset);
+                        if (now - buffer.getLong(offset + 5) <= timeToLive) {
+                            int payload = offset + HEADER + buffer.getShort(offset + 13);
+                            byte[] bytes = new byte[offset + length - payload];
+                            for (int i = 0; i < bytes.length; i++) {
+                                bytes[i] = buffer.get(payload + i);
+                            }
+                            event = mapper.readValue(bytes, new TypeReference<Map<String, Object>>() {});
+                        }
+                    }
+                    // Null for an expired event to keep events aligned with
+                    // positions
+                    events.add(event);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        log.trace("Forwarding {} events for {} to {}", events.size(), tag, socket);
+        final AtomicBoolean closed = new AtomicBoolean();
+        VoidAction closeAction = new VoidAction() {
+            @Override
+            public void on() {
+                closed.set(true);
+            }
+        };
+        // Called right away if the socket is already closed
+        socket.onclose(closeAction);
+        // The number of events handed to the socket while it's open
+        int handed = 0;
+        try {
+            for (Map<String, Object> event : events) {
+                if (closed.get()) {
+                    break;
+                }
+                if (event != null) {
+                    socket.send((String) event.get("type"), event.get("data"));
+                    // The event may not have been written if the socket
+                    // closed meanwhile
+                    if (closed.get()) {
+                        break;
+                    }
+                }
+                handed++;
+            }
+        } finally {
+            socket.off("close", closeAction);
+            settle(tag, positions, handed);
+        }
+    }
+
+    // Acknowledges the given number of positions and puts the rest back
+    private synchronized void settle(String tag, List<Long> positions, int handed) {
+        try {
+            if (handed > 0 && segments != null) {
+                byte[] ack = new byte[8];
+                long last = positions.get(handed - 1);
+                for (int i = 0; i < 8; i++) {
+                    ack[i] = (byte) (last >>> (56 - 8 * i));
+                }
+                write(ACK, tag, ack);
+            }
+        } catch (IOException e) {
+            // They will be forwarded again after restart
+            log.error("Failed to acknowledge events for {}", tag, e);
+        }
+        if (handed < positions.size() && segments != null) {
+            log.trace("Keeping {} events for {} as the socket closed", positions.size() - handed, tag);
+            List<Long> rest = new ArrayList<>(positions.subList(handed, positions.size()));
+            // Appended while forwarding
+            List<Long> appended = index.get(tag);
+            if (appended != null) {
+                rest.addAll(appended);
+            }
+            index.put(tag, rest);
+        }
+    }
+
+    /**
+     * Forces appended records to the disk and closes segment files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (segments != null) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            opened = false;
+            segments = null;
+            index.clear();
+        }
+    }
+
+    // Maps existing segments and rebuilds the index if not yet
+    private void open() throws IOException {
+        if (segments != null) {
+            return;
+        }
+        segments = new TreeMap<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d+\\.log");
+            }
+        });
+        Arrays.sort(names);
+        for (String name : names) {
+            int id = Integer.parseInt(name.substring(0, name.length() - 4));
+            Segment segment = new Segment(id, new File(directory, name), 0);
+            segments.put(id, segment);
+            scan(segment);
+        }
+        compact();
+        opened = true;
+    }
+
+    // Reads records in the given segment into the index
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (buffer.limit() - offset >= HEADER) {
+            int length = buffer.getInt(offset);
+            if (length < HEADER || length > buffer.limit() - offset) {
+                break;
+            }
+            byte kind = buffer.get(offset + 4);
+            long time = buffer.getLong(offset + 5);
+            byte[] bytes = new byte[buffer.getShort(offset + 13)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(offset + HEADER + i);
+            }
+            String tag = new String(bytes, StandardCharsets.UTF_8);
+            long position = ((long) segment.id << 32) | offset;
+            if (kind == MESSAGE) {
+                List<Long> positions = index.get(tag);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    index.put(tag, positions);
+                }
+                positions.add(position);
+            } else {
+                long acked = buffer.getLong(offset + HEADER + bytes.length);
+                List<Long> positions = index.get(tag);
+                if (positions != null) {
+                    Iterator<Long> iterator = positions.iterator();
+                    while (iterator.hasNext() && iterator.next() <= acked) {
+                        iterator.remove();
+                    }
+                    if (positions.isEmpty()) {
+                        index.remove(tag);
+                    }
+                }
+            }
+            segment.last = Math.max(segment.last, time);
+            offset += length;
+        }
+        buffer.position(offset);
+    }
+
+    private long write(byte kind, String tag, byte[] payload) throws IOException {
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + tagBytes.length + payload.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("The event exceeds the segment size " + segmentSize);
+        }
+        Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (segment == null || segment.buffer.remaining() < length) {
+            int id = segment == null ? 0 : segment.id + 1;
+            segment = new Segment(id, new File(directory, String.format("%010d.log", id)), segmentSize);
+            segments.put(id, segment);
+            compact();
+        }
+        long now = System.currentTimeMillis();
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = buffer.position();
+        buffer.putInt(length).put(kind).putLong(now).putShort((short) tagBytes.length).put(tagBytes).put(payload);
+        segment.last = now;
+        return ((long) segment.id << 32) | offset;
+    }
+
+    // Deletes segments whose records have all expired except the last one
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1 && now - segments.firstEntry().getValue().last > timeToLive) {
+            Segment segment = segments.pollFirstEntry().getValue();
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("Failed to delete {}", segment.file);
+            }
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        long first = (long) segments.firstKey() << 32;
+        Iterator<List<Long>> lists = index.values().iterator();
+        while (lists.hasNext()) {
+            List<Long> positions = lists.next();
+            while (!positions.isEmpty() && positions.get(0) < first) {
+                positions.remove(0);
+            }
+            if (positions.isEmpty()) {
+                lists.remove();
+            }
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // The time of the last record
+        long last;
+
+        // Maps the file with its size or the given size if it's new
+        Segment(int id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : channel.size());
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+}
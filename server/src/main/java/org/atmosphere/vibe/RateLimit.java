@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast each socket can send events to protect the server from a
+ * client flooding it. A message is checked against a token bucket of the
+ * socket, and one of its event type if configured by
+ * {@link RateLimit#setEventLimit(String, double, int)}, before it's parsed so
+ * that a throttled message costs as little as possible. {@code heartbeat}
+ * events count against the socket's bucket like any other event as each of
+ * them is parsed and answered, so the limit should allow for a heartbeat per
+ * heartbeat interval. A message whose type can't be told without
+ * parsing it, one declaring its type twice or having an escaped member name
+ * for example, is treated as exceeding the limit.
+ * <p>
+ * What to do with a message exceeding the limit is configured by
+ * {@link RateLimit#setOverload(Overload)}. An instance is to be set to
+ * {@link DefaultServer#setRateLimit(RateLimit)} once configured and
+ * aggregates counters of all sockets of the server.
+ * <p>
+ * Counters may be accessed by multiple threads.
+ *
+ * @author Donghwan Kim
+ */
+public class RateLimit {
+
+    /**
+     * What to do with a message exceeding the limit.
+     */
+    public enum Overload {
+        /**
+         * Discards the message.
+         */
+        DROP,
+        /**
+         * Dispatches the message later when it conforms to the limit unless
+         * it should wait longer than {@link RateLimit#setMaxDelay(int)}, in
+         * which case it's discarded.
+         */
+        DELAY,
+        /**
+         * Closes the socket.
+         */
+        CLOSE
+    }
+
+    final Bucket bucket;
+    // Indexes of event types having their own bucket in a socket's arrivals
+    final Map<String, Integer> eventIndexes = new LinkedHashMap<>();
+    final Map<Integer, Bucket> eventBuckets = new LinkedHashMap<>();
+    Overload overload = Overload.DROP;
+    long maxDelay = TimeUnit.SECONDS.toNanos(1);
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong delayed = new AtomicLong();
+    final AtomicLong closed = new AtomicLong();
+    final AtomicLong throttledSockets = new AtomicLong();
+    // Sockets' throttles are sized by the event limits at the time
+    volatile boolean inUse;
+
+    /**
+     * Creates a limit allowing each socket to send up to {@code rate} events
+     * per second with bursts of up to {@code burst} events.
+     */
+    public RateLimit(double rate, int burst) {
+        this.bucket = new Bucket(rate, burst);
+    }
+
+    /**
+     * Allows each socket to send up to {@code rate} events of the given type
+     * per second with bursts of up to {@code burst} events in addition to the
+     * limit of the socket. It throws {@link IllegalStateException} once this
+     * limit is set to a server.
+     */
+    public void setEventLimit(String event, double rate, int burst) {
+        if (inUse) {
+            throw new IllegalStateException("Event limits can't be added to a limit in use");
+        }
+        Integer index = eventIndexes.get(event);
+        if (index == null) {
+            // 0 is for the socket itself
+            index = eventIndexes.size() + 1;
+            eventIndexes.put(event, index);
+        }
+        eventBuckets.put(index, new Bucket(rate, burst));
+    }
+
+    /**
+     * What to do with a message exceeding the limit. The default is
+     * {@link Overload#DROP}.
+     */
+    public void setOverload(Overload overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * The maximum time in milliseconds to delay a message with
+     * {@link Overload#DELAY}. The default is <code>1</code>s.
+     */
+    public void setMaxDelay(int maxDelay) {
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+    }
+
+    /**
+     * The number of messages discarded so far.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The number of messages delayed so far.
+     */
+    public long delayed() {
+        return delayed.get();
+    }
+
+    /**
+     * The number of sockets closed for exceeding the limit so far.
+     */
+    public long closed() {
+        return closed.get();
+    }
+
+    /**
+     * The number of sockets which have exceeded the limit at least once so
+     * far.
+     */
+    public long throttledSockets() {
+        return throttledSockets.get();
+    }
+
+    // The bucket is implemented as the generic cell rate algorithm like
+    // AdmissionController so that a socket needs only a long per bucket
+    static class Bucket {
+        final long interval;
+        final long tolerance;
+
+        Bucket(double rate, int burst) {
+            this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            this.tolerance = interval * Math.max(burst - 1, 0);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring buffer of recently sent events of a socket, bounded by the number of
+ * events, the total length of events and the age of events. It is used to
+ * replay events a client missed while reconnecting.
+ * <p>
+ * As events may be written in a different order than they are sent, by
+ * priority, each event also records when it's written and the client's last
+ * event id is resolved in that order.
+ *
+ * @author Donghwan Kim
+ */
+class ResumeBuffer {
+
+    // The capacity arrays start with and grow from up to the max size
+    private static final int INITIAL_CAPACITY = 8;
+    private final Limits limits;
+    private int[] ids;
+    private String[] texts;
+    private long[] times;
+    // The order in which events are written or 0 if not written yet
+    private long[] writes;
+    private int head;
+    private int size;
+    private long length;
+    // The offset from head of the first event not written
+    private int unwritten;
+    private long writeCount;
+    // The greatest id and write order of events evicted so far
+    private int evictedId;
+    private long evictedWrite;
+
+    ResumeBuffer(int maxSize, int maxLength, long maxAge) {
+        this(new Limits(maxSize, maxLength, maxAge));
+    }
+
+    ResumeBuffer(Limits limits) {
+        this.limits = limits;
+    }
+
+    synchronized void add(int id, String text) {
+        long now = System.currentTimeMillis();
+        if (ids == null || size == ids.length) {
+            if (size == limits.maxSize) {
+                evict();
+            } else {
+                grow();
+            }
+        }
+        int index = (head + size) % ids.length;
+        ids[index] = id;
+        texts[index] = text;
+        times[index] = now;
+        writes[index] = 0;
+        size++;
+        length += text.length();
+        while (size > 1 && length > limits.maxLength) {
+            evict();
+        }
+        expire(now);
+    }
+
+    /**
+     * Records that the given text added before is written to the connection.
+     * Texts are compared by identity.
+     */
+    synchronized void written(String text) {
+        // Texts are written mostly in order they are added
+        for (int i = unwritten; i < size; i++) {
+            int index = (head + i) % ids.length;
+            if (writes[index] == 0 && texts[index] == text) {
+                writes[index] = ++writeCount;
+                while (unwritten < size && writes[(head + unwritten) % ids.length] != 0) {
+                    unwritten++;
+                }
+                return;
+            }
+        }
+        // Or written again by replay
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % ids.length;
+            if (texts[index] == text) {
+                writes[index] = ++writeCount;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns events written after the event of the given id or not written
+     * at all in order they were sent or {@code null} if some of them are no
+     * longer available.
+     */
+    synchronized List<String> since(int lastId) {
+        expire(System.currentTimeMillis());
+        long lastWrite = -1;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % ids.length;
+            if (ids[index] == lastId) {
+                lastWrite = writes[index];
+                break;
+            }
+        }
+        // Compares ids if the event is unknown, a heartbeat for example
+        if (lastWrite > 0 ? evictedWrite > lastWrite : lastId < evictedId) {
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % ids.length;
+            if (writes[index] == 0 || (lastWrite > 0 ? writes[index] > lastWrite : ids[index] > lastId)) {
+                list.add(texts[index]);
+            }
+        }
+        return list;
+    }
+
+    // Most sockets send few events so arrays are allocated on demand
+    private void grow() {
+        int capacity = ids == null ? Math.min(INITIAL_CAPACITY, limits.maxSize) : (int) Math.min(ids.length * 2L, limits.maxSize);
+        int[] newIds = new int[capacity];
+        String[] newTexts = new String[capacity];
+        long[] newTimes = new long[capacity];
+        long[] newWrites = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % ids.length;
+            newIds[i] = ids[index];
+            newTexts[i] = texts[index];
+            newTimes[i] = times[index];
+            newWrites[i] = writes[index];
+        }
+        ids = newIds;
+        texts = newTexts;
+        times = newTimes;
+        writes = newWrites;
+        head = 0;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - times[head] > limits.maxAge) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        evictedId = Math.max(evictedId, ids[head]);
+        // An event not written yet is regarded as written now as it's lost
+        evictedWrite = Math.max(evictedWrite, writes[head] != 0 ? writes[head] : ++writeCount);
+        length -= texts[head].length();
+        texts[head] = null;
+        head = (head + 1) % ids.length;
+        size--;
+        unwritten = Math.max(unwritten - 1, 0);
+    }
+
+    /**
+     * Limits shared by buffers of sockets of a server.
+     */
+    static class Limits {
+        final int maxSize;
+        final int maxLength;
+        final long maxAge;
+
+        Limits(int maxSize, int maxLength, long maxAge) {
+            this.maxSize = maxSize;
+            this.maxLength = maxLength;
+            this.maxAge = maxAge;
+        }
+    }
+
+}
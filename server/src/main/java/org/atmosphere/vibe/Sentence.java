@@ -18,6 +18,7 @@ package org.atmosphere.vibe;
 import java.io.Serializable;
 
 import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.transport.Priority;
 
 /**
  * {@code Sentence} is a series of predicates that a group of socket have to
@@ -32,7 +33,11 @@ public class Sentence implements AbstractServerSocket<Sentence> {
 
     private final Action<Action<ServerSocket>> serverAction;
 
-    Sentence(Action<Action<ServerSocket>> serverAction) {
+    /**
+     * Creates a sentence delegating a built action to the given server action.
+     * It is intended for {@link Server} implementations.
+     */
+    public Sentence(Action<Action<ServerSocket>> serverAction) {
         this.serverAction = serverAction;
     }
 
@@ -43,10 +48,35 @@ public class Sentence implements AbstractServerSocket<Sentence> {
 
     @Override
     public Sentence send(String event, Object data) {
-        execute(new SendAction(event, data));
+        return send(event, data, Priority.INTERACTIVE);
+    }
+
+    @Override
+    public Sentence send(String event, Object data, Priority priority) {
+        execute(new SendAction(event, data, priority));
+        return this;
+    }
+
+    @Override
+    public Sentence send(Batch batch) {
+        execute(new SendBatchAction(batch));
         return this;
     }
 
+    @Override
+    public Sentence sendState(String key, Object state) {
+        execute(new SendStateAction(key, state));
+        return this;
+    }
+
+    /**
+     * Returns a request to be sent to every socket with the given event and
+     * data whose replies are gathered. See {@link Ask}.
+     */
+    public Ask ask(String event, Object data) {
+        return new Ask(serverAction, event, data);
+    }
+
     @Override
     public void close() {
         execute(new CloseAction());
@@ -64,25 +94,71 @@ public class Sentence implements AbstractServerSocket<Sentence> {
         return this;
     }
 
+    @Override
+    public Sentence subscribe(String... patterns) {
+        execute(new SubscribeAction(patterns));
+        return this;
+    }
+
+    @Override
+    public Sentence unsubscribe(String... patterns) {
+        execute(new UnsubscribeAction(patterns));
+        return this;
+    }
+
     private void execute(Action<ServerSocket> action) {
         serverAction.on(action);
     }
 
     private static interface SerializableAction<T> extends Action<T>, Serializable {}
 
-    private static class SendAction implements SerializableAction<ServerSocket> {
+    // Exposed for the server to store an event no socket has received
+    static class SendAction implements SerializableAction<ServerSocket> {
         private static final long serialVersionUID = 2178442626501531717L;
-        private final String event;
-        private final Object data;
+        final String event;
+        final Object data;
+        private final Priority priority;
 
-        SendAction(String event, Object data) {
+        SendAction(String event, Object data, Priority priority) {
             this.event = event;
             this.data = data;
+            this.priority = priority;
         }
 
         @Override
         public void on(ServerSocket socket) {
-            socket.send(event, data);
+            // Actions from nodes not knowing priority don't have it
+            socket.send(event, data, priority != null ? priority : Priority.INTERACTIVE);
+        }
+    }
+
+    private static class SendBatchAction implements SerializableAction<ServerSocket> {
+        private static final long serialVersionUID = -6310375580286247781L;
+        private final Batch batch;
+
+        SendBatchAction(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.send(batch);
+        }
+    }
+
+    private static class SendStateAction implements SerializableAction<ServerSocket> {
+        private static final long serialVersionUID = 4417829311546370297L;
+        private final String key;
+        private final Object state;
+
+        SendStateAction(String key, Object state) {
+            this.key = key;
+            this.state = state;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.sendState(key, state);
         }
     }
 
@@ -123,4 +199,32 @@ public class Sentence implements AbstractServerSocket<Sentence> {
         }
     }
 
+    private static class SubscribeAction implements SerializableAction<ServerSocket> {
+        private static final long serialVersionUID = 5061527213410744437L;
+        private final String[] patterns;
+
+        public SubscribeAction(String[] patterns) {
+            this.patterns = patterns;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.subscribe(patterns);
+        }
+    }
+
+    private static class UnsubscribeAction implements SerializableAction<ServerSocket> {
+        private static final long serialVersionUID = -2380372196823360436L;
+        private final String[] patterns;
+
+        public UnsubscribeAction(String[] patterns) {
+            this.patterns = patterns;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.unsubscribe(patterns);
+        }
+    }
+
 }
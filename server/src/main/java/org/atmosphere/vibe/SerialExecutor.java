@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A mailbox executing given tasks one at a time in order on the underlying
+ * executor. Different mailboxes sharing the same executor run in parallel.
+ * <p>
+ * If the underlying executor rejects running the mailbox, {@link #execute(Runnable)}
+ * throws the exception but the task stays in the mailbox and runs in order
+ * once the executor accepts it on a later call.
+ *
+ * @author Donghwan Kim
+ */
+class SerialExecutor implements Executor {
+
+    // The number of tasks to run before yielding the thread to other mailboxes
+    private static final int BATCH_SIZE = 64;
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Failed to execute {}", task, e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                try {
+                    schedule();
+                } catch (RuntimeException e) {
+                    log.error("Failed to schedule the remaining tasks of {}", SerialExecutor.this, e);
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RuntimeException e) {
+                // Otherwise the mailbox would never be drained again
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+}
@@ -60,6 +60,50 @@ public interface Server extends Action<ServerTransport> {
      */
     Server byTag(String[] names, Action<ServerSocket> action);
 
+    /**
+     * Returns a sentence that the socket selected by the given tag query in
+     * this server have to follow.
+     */
+    Sentence byTag(TagQuery query);
+
+    /**
+     * Executes the given action retrieving the socket selected by the given
+     * tag query in this server. The given action will be executed multiple
+     * times per socket if sockets are found and won't be executed if not
+     * found.
+     */
+    Server byTag(TagQuery query, Action<ServerSocket> action);
+
+    /**
+     * Returns a sentence that the socket subscribing a pattern matching the
+     * given topic in this server have to follow. See
+     * {@link ServerSocket#subscribe(String...)} for patterns.
+     */
+    Sentence byTopic(String topic);
+
+    /**
+     * Executes the given action retrieving the socket subscribing a pattern
+     * matching the given topic in this server. The given action will be
+     * executed once per socket even if several patterns of the socket match
+     * and won't be executed if not found.
+     */
+    Server byTopic(String topic, Action<ServerSocket> action);
+
+    /**
+     * Returns the number of sockets in this server. It's read without
+     * retrieving sockets. With {@link ClusteredServer}, it's the number of
+     * sockets in the cluster, which is eventually consistent.
+     */
+    long count();
+
+    /**
+     * Returns the number of sockets tagged with the given tag in this server.
+     * It's read without retrieving sockets. With {@link ClusteredServer}, it's
+     * the number of such sockets in the cluster, which is eventually
+     * consistent.
+     */
+    long count(String tag);
+
     /**
      * Registers an action to be called when the socket has been opened in this
      * server. It's allowed to add several actions at any time, so you don't
@@ -67,4 +111,13 @@ public interface Server extends Action<ServerTransport> {
      */
     Server onsocket(Action<ServerSocket> action);
 
+    /**
+     * Registers an action to be called when any socket in this server receives
+     * the given event. Unlike {@link ServerSocket#on(String, Action)} in
+     * {@link Server#onsocket(Action)}, actions registered this way are shared
+     * by all sockets instead of being added to each socket, and are called
+     * before the socket's own actions for the event.
+     */
+    <T> Server on(String event, SocketAction<T> action);
+
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+/**
+ * An action to handle an event of any socket, registered through
+ * {@link Server#on(String, SocketAction)}.
+ *
+ * @author Donghwan Kim
+ */
+public interface SocketAction<T> {
+
+    /**
+     * Some action is taken with the socket and the event data. The data is
+     * given as {@link ServerSocket.Reply} if the client requires a reply like
+     * {@link ServerSocket#on(String, org.atmosphere.vibe.platform.action.Action)}.
+     */
+    void on(ServerSocket socket, T data);
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An index of sockets by tag. Each socket is given a dense ordinal, reused
+ * after the socket is closed, and each tag has a {@link Bitmap} of ordinals of
+ * sockets tagged with it so that {@link TagQuery} is evaluated by combining
+ * bitmaps instead of scanning sockets.
+ * <p>
+ * It also counts sockets and sockets per tag as PN-counters, pairs of the
+ * number of increments and that of decrements, so that counts of nodes can be
+ * merged by {@link ClusteredServer}. The counter of a tag is removed once it
+ * counts no socket, and one created again starts from the number of tag
+ * increments ever made so that it's still larger than the removed one when
+ * merged.
+ * <p>
+ * Tagging and untagging lock only the tag's bitmap so that sockets joining
+ * different tags don't contend, and only adding and removing sockets share
+ * a lock to hand out ordinals.
+ *
+ * @author Donghwan Kim
+ */
+class TagIndex {
+
+    private final Bitmap all = new Bitmap();
+    // A tag's bitmap is also the lock for the tag's entries in both maps
+    private final ConcurrentMap<String, Bitmap> bitmaps = new ConcurrentHashMap<>();
+    private final Counter counter = new Counter();
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicLong tagIncrements = new AtomicLong();
+    // Replaced when grown so that readers see the elements set through it
+    private volatile AtomicReferenceArray<ServerSocket> sockets = new AtomicReferenceArray<>(64);
+    // The following are guarded by this
+    private int[] freeOrdinals = new int[16];
+    private int freeCount;
+    private int nextOrdinal;
+
+    synchronized int add(ServerSocket socket) {
+        int ordinal = freeCount > 0 ? freeOrdinals[--freeCount] : nextOrdinal++;
+        AtomicReferenceArray<ServerSocket> array = sockets;
+        if (ordinal >= array.length()) {
+            AtomicReferenceArray<ServerSocket> grown = new AtomicReferenceArray<>(array.length() * 2);
+            for (int i = 0; i < array.length(); i++) {
+                grown.set(i, array.get(i));
+            }
+            sockets = array = grown;
+        }
+        array.set(ordinal, socket);
+        synchronized (all) {
+            all.set(ordinal);
+        }
+        counter.increments.incrementAndGet();
+        return ordinal;
+    }
+
+    void remove(int ordinal, Iterable<String> tags) {
+        for (String tag : tags) {
+            untag(ordinal, tag);
+        }
+        synchronized (this) {
+            synchronized (all) {
+                all.clear(ordinal);
+            }
+            counter.decrements.incrementAndGet();
+            sockets.set(ordinal, null);
+            if (freeCount == freeOrdinals.length) {
+                freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+            }
+            freeOrdinals[freeCount++] = ordinal;
+        }
+    }
+
+    void tag(int ordinal, String tag) {
+        for (;;) {
+            Bitmap bitmap = bitmaps.get(tag);
+            if (bitmap == null) {
+                Bitmap created = new Bitmap();
+                bitmap = bitmaps.putIfAbsent(tag, created);
+                if (bitmap == null) {
+                    bitmap = created;
+                }
+            }
+            synchronized (bitmap) {
+                // The bitmap has been removed as empty in the meantime
+                if (bitmaps.get(tag) != bitmap) {
+                    continue;
+                }
+                bitmap.set(ordinal);
+                Counter counter = counters.get(tag);
+                if (counter == null) {
+                    counter = new Counter(tagIncrements.get());
+                    counters.put(tag, counter);
+                }
+                counter.increments.incrementAndGet();
+                tagIncrements.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    void untag(int ordinal, String tag) {
+        Bitmap bitmap = bitmaps.get(tag);
+        if (bitmap != null) {
+            synchronized (bitmap) {
+                if (bitmaps.get(tag) != bitmap) {
+                    return;
+                }
+                bitmap.clear(ordinal);
+                // The counter goes before the bitmap so that a bitmap created
+                // again never finds it
+                Counter counter = counters.get(tag);
+                counter.decrements.incrementAndGet();
+                if (counter.value() == 0) {
+                    counters.remove(tag);
+                }
+                // Tags come and go like rooms so as not to keep every one
+                if (bitmap.isEmpty()) {
+                    bitmaps.remove(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the counter of sockets.
+     */
+    Counter counter() {
+        return counter;
+    }
+
+    /**
+     * Returns the counter of sockets tagged with the given tag or
+     * {@code null} if no socket is tagged with it.
+     */
+    Counter counter(String tag) {
+        return counters.get(tag);
+    }
+
+    /**
+     * Returns counters of tags.
+     */
+    Map<String, Counter> counters() {
+        return counters;
+    }
+
+    /**
+     * Returns tags with which at least one socket is tagged.
+     */
+    Set<String> tags() {
+        return bitmaps.keySet();
+    }
+
+    ServerSocket socket(int ordinal) {
+        AtomicReferenceArray<ServerSocket> array = sockets;
+        return ordinal < array.length() ? array.get(ordinal) : null;
+    }
+
+    /**
+     * Returns a bitmap of ordinals of sockets selected by the given query.
+     */
+    Bitmap evaluate(TagQuery query) {
+        switch (query.operator) {
+        case TAG:
+            return snapshot(bitmaps.get(query.name));
+        case AND:
+            // a & !b is computed as a andNot b without the complement of b
+            if (query.right.operator == TagQuery.Operator.NOT) {
+                return evaluate(query.left).andNot(evaluate(query.right.left));
+            }
+            return evaluate(query.left).and(evaluate(query.right));
+        case OR:
+            return evaluate(query.left).or(evaluate(query.right));
+        case NOT:
+            return snapshot(all).andNot(evaluate(query.left));
+        default:
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private Bitmap snapshot(Bitmap bitmap) {
+        if (bitmap == null) {
+            return new Bitmap();
+        }
+        synchronized (bitmap) {
+            return bitmap.copy();
+        }
+    }
+
+    static class Counter {
+        final AtomicLong increments;
+        final AtomicLong decrements;
+
+        Counter() {
+            this(0);
+        }
+
+        Counter(long base) {
+            increments = new AtomicLong(base);
+            decrements = new AtomicLong(base);
+        }
+
+        long value() {
+            // Reads decrements first not to see a negative value
+            long n = decrements.get();
+            return increments.get() - n;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * A boolean expression over tags to select sockets with
+ * {@link Server#byTag(TagQuery)}. For example, sockets tagged with
+ * {@code room} but not with {@code muted} are selected by
+ * {@code TagQuery.tag("room").andNot(TagQuery.tag("muted"))}.
+ * <p>
+ * Instances are immutable and serializable to be used in cluster environments.
+ * 
+ * @author Donghwan Kim
+ */
+public class TagQuery implements Serializable {
+
+    private static final long serialVersionUID = -1596329498093812519L;
+
+    static enum Operator {
+        TAG, AND, OR, NOT
+    }
+
+    final Operator operator;
+    final String name;
+    final TagQuery left;
+    final TagQuery right;
+
+    private TagQuery(Operator operator, String name, TagQuery left, TagQuery right) {
+        this.operator = operator;
+        this.name = name;
+        this.left = left;
+        this.right = right;
+    }
+
+    /**
+     * Selects sockets tagged with the given tag.
+     */
+    public static TagQuery tag(String name) {
+        return new TagQuery(Operator.TAG, name, null, null);
+    }
+
+    /**
+     * Selects sockets tagged with all of the given tags.
+     */
+    public static TagQuery allOf(String... names) {
+        TagQuery query = tag(names[0]);
+        for (int i = 1; i < names.length; i++) {
+            query = query.and(tag(names[i]));
+        }
+        return query;
+    }
+
+    /**
+     * Selects sockets tagged with any of the given tags.
+     */
+    public static TagQuery anyOf(String... names) {
+        TagQuery query = tag(names[0]);
+        for (int i = 1; i < names.length; i++) {
+            query = query.or(tag(names[i]));
+        }
+        return query;
+    }
+
+    /**
+     * Selects sockets selected by both this query and the given query.
+     */
+    public TagQuery and(TagQuery query) {
+        return new TagQuery(Operator.AND, null, this, query);
+    }
+
+    /**
+     * Selects sockets selected by either this query or the given query.
+     */
+    public TagQuery or(TagQuery query) {
+        return new TagQuery(Operator.OR, null, this, query);
+    }
+
+    /**
+     * Selects sockets selected by this query but not by the given query.
+     */
+    public TagQuery andNot(TagQuery query) {
+        return and(query.not());
+    }
+
+    /**
+     * Selects sockets not selected by this query.
+     */
+    public TagQuery not() {
+        return new TagQuery(Operator.NOT, null, this, null);
+    }
+
+    boolean matches(Set<String> tags) {
+        switch (operator) {
+        case TAG:
+            return tags.contains(name);
+        case AND:
+            return left.matches(tags) && right.matches(tags);
+        case OR:
+            return left.matches(tags) || right.matches(tags);
+        case NOT:
+            return !left.matches(tags);
+        default:
+            throw new IllegalArgumentException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (operator) {
+        case TAG:
+            return name;
+        case NOT:
+            return "!" + left;
+        default:
+            return "(" + left + (operator == Operator.AND ? " & " : " | ") + right + ")";
+        }
+    }
+
+}
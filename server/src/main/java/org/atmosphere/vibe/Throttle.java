@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.atmosphere.vibe.RateLimit.Bucket;
+
+/**
+ * A socket's state of {@link RateLimit}.
+ *
+ * @author Donghwan Kim
+ */
+class Throttle {
+
+    /**
+     * Returned by {@link #admit(String)} if the message should be rejected.
+     */
+    static final long REJECT = -1;
+    /**
+     * Returned by {@link #type(String)} if the type can't be told reliably.
+     */
+    static final String MALFORMED = new String("malformed");
+
+    final RateLimit limit;
+    // The theoretical arrival time of the socket's bucket at 0 followed by
+    // those of event types' buckets
+    private final AtomicLongArray arrivals;
+    private volatile boolean throttled;
+    private volatile boolean closed;
+
+    Throttle(RateLimit limit) {
+        this.limit = limit;
+        this.arrivals = new AtomicLongArray(limit.eventIndexes.size() + 1);
+        long now = System.nanoTime();
+        for (int i = 0; i < arrivals.length(); i++) {
+            arrivals.set(i, now);
+        }
+    }
+
+    /**
+     * Returns <code>0</code> if the given message can be dispatched now, the
+     * time in nanoseconds to wait before dispatching it if it should be
+     * delayed or {@link #REJECT} if it should be rejected.
+     */
+    long admit(String text) {
+        // The socket is being closed
+        if (closed) {
+            return REJECT;
+        }
+        String type = type(text);
+        if (type == MALFORMED) {
+            return reject();
+        }
+        long now = System.nanoTime();
+        long maxWait = limit.overload == RateLimit.Overload.DELAY ? limit.maxDelay : 0;
+        long wait = 0;
+        Integer index = type != null ? limit.eventIndexes.get(type) : null;
+        if (index != null) {
+            wait = acquire(index, limit.eventBuckets.get(index), now, maxWait);
+        }
+        if (wait != REJECT) {
+            long socketWait = acquire(0, limit.bucket, now, maxWait);
+            wait = socketWait == REJECT ? REJECT : Math.max(wait, socketWait);
+        }
+        if (wait == REJECT) {
+            return reject();
+        }
+        if (wait != 0) {
+            throttled();
+            limit.delayed.incrementAndGet();
+        }
+        return wait;
+    }
+
+    private long reject() {
+        throttled();
+        if (limit.overload == RateLimit.Overload.CLOSE) {
+            closed = true;
+            limit.closed.incrementAndGet();
+        } else {
+            limit.dropped.incrementAndGet();
+        }
+        return REJECT;
+    }
+
+    private void throttled() {
+        if (!throttled) {
+            throttled = true;
+            limit.throttledSockets.incrementAndGet();
+        }
+    }
+
+    // Takes a slot of the bucket at the given index if it conforms within the
+    // given wait
+    private long acquire(int index, Bucket bucket, long now, long maxWait) {
+        while (true) {
+            long current = arrivals.get(index);
+            long next = Math.max(current, now);
+            long wait = Math.max(next - now - bucket.tolerance, 0);
+            if (wait > maxWait) {
+                return REJECT;
+            }
+            if (arrivals.compareAndSet(index, current, next + bucket.interval)) {
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Finds the type of the given event by scanning its top-level members
+     * without parsing it. Returns {@code null} if there is no type and
+     * {@link #MALFORMED} if a top-level member name or the type contains an
+     * escape or the type is declared more than once, because then the type
+     * found here might not be the one the parser will see.
+     */
+    static String type(String text) {
+        String type = null;
+        boolean found = false;
+        int depth = 0;
+        boolean key = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '{':
+                depth++;
+                key = depth == 1;
+                break;
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                break;
+            case ',':
+                key = depth == 1;
+                break;
+            case '"':
+                int end = skipString(text, i);
+                if (key) {
+                    key = false;
+                    if (text.lastIndexOf('\\', end) > i) {
+                        return MALFORMED;
+                    }
+                    if (end - i == 5 && text.startsWith("type", i + 1)) {
+                        if (found) {
+                            return MALFORMED;
+                        }
+                        found = true;
+                        int j = skipWhitespace(text, end + 1);
+                        if (j < text.length() && text.charAt(j) == ':') {
+                            j = skipWhitespace(text, j + 1);
+                            if (j < text.length() && text.charAt(j) == '"') {
+                                int valueEnd = skipString(text, j);
+                                if (text.lastIndexOf('\\', valueEnd) > j) {
+                                    return MALFORMED;
+                                }
+                                type = text.substring(j + 1, Math.min(valueEnd, text.length()));
+                                end = valueEnd;
+                            }
+                        }
+                    }
+                }
+                i = end;
+                break;
+            default:
+                break;
+            }
+        }
+        return type;
+    }
+
+    // Returns the index of the closing quote of the string starting at the
+    // given index
+    private static int skipString(String text, int start) {
+        int i = start + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A trie of topic patterns subscribed by sockets. A topic consists of segments
+ * delimited by {@code .} and a pattern may have {@code *} matching exactly one
+ * segment and {@code #} matching zero or more segments. Matching a topic
+ * visits only the branches which can match so that its cost depends on the
+ * number of matching subscriptions, not the number of sockets.
+ * <p>
+ * Results are cached per topic. A subscription change to a pattern without
+ * wildcards removes the cached result of that topic. A change to a pattern
+ * with wildcards stamps its first segment, or all topics if the first
+ * segment is a wildcard, so that cached results of topics starting with the
+ * segment are computed again on their next match. Changing a subscription
+ * therefore doesn't scan the cached topics.
+ *
+ * @author Donghwan Kim
+ */
+class TopicTrie {
+
+    private static final int MAX_CACHE_SIZE = 10000;
+    private final Node root = new Node();
+    private final ConcurrentMap<String, Match> cache = new ConcurrentHashMap<>();
+    // Increased whenever subscriptions change to discard matches computed
+    // meanwhile. It also stamps changes to patterns with wildcards
+    private volatile long version;
+    // The last change to a pattern starting with a wildcard
+    private volatile long wildcardStamp;
+    // The last change to a pattern with wildcards per its first segment
+    private final ConcurrentMap<String, Long> segmentStamps = new ConcurrentHashMap<>();
+
+    synchronized void subscribe(String pattern, ServerSocket socket) {
+        Node node = root;
+        for (String segment : pattern.split("\\.", -1)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        if (node.sockets.add(socket)) {
+            changed(pattern);
+        }
+    }
+
+    synchronized void unsubscribe(String pattern, ServerSocket socket) {
+        if (unsubscribe(root, pattern.split("\\.", -1), 0, socket)) {
+            changed(pattern);
+        }
+    }
+
+    // Returns true if the socket has been removed and prunes empty nodes
+    private boolean unsubscribe(Node node, String[] segments, int index, ServerSocket socket) {
+        if (index == segments.length) {
+            return node.sockets.remove(socket);
+        }
+        Node child = node.children.get(segments[index]);
+        if (child == null) {
+            return false;
+        }
+        boolean removed = unsubscribe(child, segments, index + 1, socket);
+        if (child.sockets.isEmpty() && child.children.isEmpty()) {
+            node.children.remove(segments[index]);
+        }
+        return removed;
+    }
+
+    // Invalidates cached matches of topics the given pattern may match
+    private void changed(String pattern) {
+        version++;
+        String[] segments = pattern.split("\\.", -1);
+        boolean wildcard = false;
+        for (String segment : segments) {
+            if (isWildcard(segment)) {
+                wildcard = true;
+                break;
+            }
+        }
+        if (!wildcard) {
+            cache.remove(pattern);
+        } else if (isWildcard(segments[0])) {
+            wildcardStamp = version;
+        } else {
+            segmentStamps.put(segments[0], version);
+        }
+    }
+
+    private static boolean isWildcard(String segment) {
+        return segment.equals("*") || segment.equals("#");
+    }
+
+    /**
+     * Returns sockets subscribing a pattern matching the given topic.
+     */
+    Collection<ServerSocket> match(String topic) {
+        int dot = topic.indexOf('.');
+        String first = dot < 0 ? topic : topic.substring(0, dot);
+        Match match = cache.get(topic);
+        if (match != null && match.wildcardStamp == wildcardStamp && match.segmentStamp == segmentStamp(first)) {
+            return match.sockets;
+        }
+        long current = version;
+        match = new Match(wildcardStamp, segmentStamp(first));
+        collect(root, topic.split("\\.", -1), 0, match.collected);
+        if (cache.size() >= MAX_CACHE_SIZE) {
+            cache.clear();
+        }
+        cache.put(topic, match);
+        // Subscriptions may have changed after the removal had been done
+        if (version != current) {
+            cache.remove(topic, match);
+        }
+        return match.sockets;
+    }
+
+    private long segmentStamp(String segment) {
+        Long stamp = segmentStamps.get(segment);
+        return stamp == null ? 0 : stamp;
+    }
+
+    private void collect(Node node, String[] segments, int index, Set<ServerSocket> sockets) {
+        Node multi = node.children.get("#");
+        if (multi != null) {
+            // # matches the rest from zero segments to all of them
+            for (int i = index; i <= segments.length; i++) {
+                collect(multi, segments, i, sockets);
+            }
+        }
+        if (index == segments.length) {
+            sockets.addAll(node.sockets);
+            return;
+        }
+        Node exact = node.children.get(segments[index]);
+        if (exact != null) {
+            collect(exact, segments, index + 1, sockets);
+        }
+        Node single = node.children.get("*");
+        if (single != null) {
+            collect(single, segments, index + 1, sockets);
+        }
+    }
+
+    private static class Match {
+        final Set<ServerSocket> collected = new LinkedHashSet<>();
+        final Set<ServerSocket> sockets = Collections.unmodifiableSet(collected);
+        // Stamps of changes to patterns with wildcards the result reflects
+        final long wildcardStamp;
+        final long segmentStamp;
+
+        Match(long wildcardStamp, long segmentStamp) {
+            this.wildcardStamp = wildcardStamp;
+            this.segmentStamp = segmentStamp;
+        }
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        final Set<ServerSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<ServerSocket, Boolean>());
+    }
+
+}
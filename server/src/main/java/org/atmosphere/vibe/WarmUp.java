@@ -0,0 +1,397 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.atmosphere.vibe.ServerSocket.Reply;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.Actions;
+import org.atmosphere.vibe.platform.action.ConcurrentActions;
+import org.atmosphere.vibe.platform.http.ServerHttpExchange;
+import org.atmosphere.vibe.platform.websocket.ServerWebSocket;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+import org.atmosphere.vibe.transport.websocket.WebSocketTransportServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the server and the transport servers by running synthetic sessions
+ * through in-memory WebSockets and HTTP exchanges before the node starts to
+ * accept clients, so that the first clients don't pay for class loading,
+ * serializer construction and JIT compilation.
+ * <p>
+ * Each iteration opens a WebSocket, HTTP streaming and HTTP long polling
+ * transport in turn and exchanges a handshake, an event with reply, an event
+ * from the server and its reply with each before closing it. The given
+ * servers should be configured like the ones serving clients but must not be
+ * them as synthetic sockets are passed to their actions.
+ * <p>
+ * An iteration fails if it throws an exception or if any of its sockets
+ * doesn't exchange the echo and the reply within the timeout. Each transport
+ * waits for them before closing so that a server dispatching events on other
+ * threads is warmed up as well. Once the number of failed
+ * iterations reaches the limit, warm-up stops with an exception as the
+ * servers are unlikely to serve clients either.
+ * <p>
+ * The following options are configurable.
+ * <ul>
+ * <li>{@link WarmUp#setIterations(int)}</li>
+ * <li>{@link WarmUp#setMaxFailures(int)}</li>
+ * <li>{@link WarmUp#setTimeout(long)}</li>
+ * </ul>
+ *
+ * @author Donghwan Kim
+ */
+public class WarmUp {
+
+    private static final Pattern ID = Pattern.compile("\\?id=([^&\\s]+)");
+    private final Logger log = LoggerFactory.getLogger(WarmUp.class);
+    private final HttpTransportServer httpTransportServer;
+    private final WebSocketTransportServer wsTransportServer;
+    // Whether the servers are created by this warm-up and so disposed by it
+    private boolean owned;
+    private int iterations = 1000;
+    private int maxFailures = 10;
+    private int failures;
+    private long timeout = 5000;
+    // Counted down by the echo and the reply of the socket being opened. As
+    // the server may dispatch events on other threads, each transport waits
+    // for it before closing
+    private volatile CountDownLatch exchanged;
+    private Actions<Void> readyActions = new ConcurrentActions<>(new Actions.Options().once(true).memory(true));
+
+    /**
+     * Creates a warm-up with servers of the default configuration which are
+     * disposed of once warm-up has finished.
+     */
+    public WarmUp() {
+        this(new DefaultServer(), new HttpTransportServer(), new WebSocketTransportServer());
+        this.owned = true;
+    }
+
+    /**
+     * Creates a warm-up with the given servers which are used only for
+     * warm-up.
+     */
+    public WarmUp(Server server, HttpTransportServer httpTransportServer, WebSocketTransportServer wsTransportServer) {
+        this.httpTransportServer = httpTransportServer;
+        this.wsTransportServer = wsTransportServer;
+        httpTransportServer.ontransport(server);
+        wsTransportServer.ontransport(server);
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(final ServerSocket socket) {
+                // Sockets are opened on the thread running warm-up
+                final CountDownLatch latch = exchanged;
+                socket.on("echo", new Action<Reply<Object>>() {
+                    @Override
+                    public void on(Reply<Object> reply) {
+                        reply.resolve(reply.data());
+                        latch.countDown();
+                    }
+                });
+                socket.send("warmup", "data", new Action<Object>() {
+                    @Override
+                    public void on(Object data) {
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The number of iterations. The default is <code>1000</code>.
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * The number of failed iterations at which warm-up stops with an
+     * exception. The default is <code>10</code>.
+     */
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * The time in milliseconds each transport waits for its echo and reply.
+     * The default is <code>5000</code>.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the number of failed iterations so far.
+     */
+    public int failures() {
+        return failures;
+    }
+
+    /**
+     * Adds an action to be called when warm-up has finished. If it has
+     * already finished, the action is called immediately.
+     */
+    public WarmUp onready(Action<Void> action) {
+        readyActions.add(action);
+        return this;
+    }
+
+    /**
+     * Runs warm-up in the current thread and then fires ready actions. A
+     * failed iteration is logged and counted, and if the count reaches the
+     * limit, {@link IllegalStateException} is thrown without firing ready
+     * actions.
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                // The number of transports which exchanged the echo and the
+                // reply
+                int exchanges = 0;
+                RuntimeException exception = null;
+                try {
+                    exchanges += websocket() ? 1 : 0;
+                    exchanges += stream() ? 1 : 0;
+                    exchanges += longpoll() ? 1 : 0;
+                } catch (RuntimeException e) {
+                    exception = e;
+                }
+                if (exception == null && exchanges == 3) {
+                    continue;
+                }
+                failures++;
+                if (exception != null) {
+                    log.warn("Warm-up iteration {} failed", i, exception);
+                } else {
+                    log.warn("Warm-up iteration {} exchanged the echo and the reply over {} of 3 transports", i, exchanges);
+                }
+                if (failures >= maxFailures) {
+                    throw new IllegalStateException("Warm-up stopped as " + failures + " of " + (i + 1) + " iterations failed", exception);
+                }
+            }
+        } finally {
+            if (owned) {
+                // Otherwise the check for the next poll goes on until
+                // synthetic long polling transports' deadlines pass
+                httpTransportServer.close();
+            }
+        }
+        log.info("Warm-up of {} iterations with {} failures took {} ms", iterations, failures, System.currentTimeMillis() - start);
+        readyActions.fire();
+    }
+
+    private boolean websocket() {
+        CountDownLatch latch = exchanged = new CountDownLatch(2);
+        Loopback ws = new Loopback("ws://localhost/vibe?transport=ws");
+        wsTransportServer.on(ws.proxy(ServerWebSocket.class));
+        ws.fire("ontext", events()[0]);
+        ws.fire("ontext", events()[1]);
+        boolean done = await(latch);
+        ws.fire("onclose", null);
+        return done;
+    }
+
+    private boolean stream() {
+        CountDownLatch latch = exchanged = new CountDownLatch(2);
+        String uri = "http://localhost/vibe?transport=stream";
+        Loopback open = new Loopback(uri + "&when=open");
+        httpTransportServer.on(open.proxy(ServerHttpExchange.class));
+        String id = open.id();
+        for (String event : events()) {
+            post(uri, id, event);
+        }
+        boolean done = await(latch);
+        abort(uri, id);
+        return done;
+    }
+
+    private boolean longpoll() {
+        CountDownLatch latch = exchanged = new CountDownLatch(2);
+        String uri = "http://localhost/vibe?transport=longpoll";
+        Loopback open = new Loopback(uri + "&when=open");
+        httpTransportServer.on(open.proxy(ServerHttpExchange.class));
+        String id = open.id();
+        // Receives the handshake and the event from the server
+        for (int i = 0; i < 2; i++) {
+            httpTransportServer.on(new Loopback(uri + "&when=poll&id=" + id).proxy(ServerHttpExchange.class));
+        }
+        // Waits for the reply to the echo event
+        httpTransportServer.on(new Loopback(uri + "&when=poll&id=" + id).proxy(ServerHttpExchange.class));
+        for (String event : events()) {
+            post(uri, id, event);
+        }
+        boolean done = await(latch);
+        abort(uri, id);
+        // The aborted transport closes on the next poll
+        httpTransportServer.on(new Loopback(uri + "&when=poll&id=" + id).proxy(ServerHttpExchange.class));
+        return done;
+    }
+
+    // Waits for the echo and the reply of the current transport
+    private boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void post(String uri, String id, String event) {
+        Loopback post = new Loopback(uri + "&id=" + id);
+        post.method = "POST";
+        post.headers.put("content-type", "text/plain; charset=utf-8");
+        post.body = "data=" + event;
+        httpTransportServer.on(post.proxy(ServerHttpExchange.class));
+    }
+
+    private void abort(String uri, String id) {
+        httpTransportServer.on(new Loopback(uri + "&when=abort&id=" + id).proxy(ServerHttpExchange.class));
+    }
+
+    // An event with reply and the reply to the first event from the server
+    private static String[] events() {
+        return new String[] {
+            "{\"id\":\"1\",\"type\":\"echo\",\"data\":{\"text\":\"warmup\"},\"reply\":true}",
+            "{\"id\":\"2\",\"type\":\"reply\",\"data\":{\"id\":\"1\",\"data\":\"data\",\"exception\":false},\"reply\":false}"
+        };
+    }
+
+    /**
+     * An in-memory WebSocket or HTTP exchange implemented by a dynamic proxy.
+     * It records what is written, fires the body on read, fires finish on end
+     * and close on close.
+     */
+    private static class Loopback implements InvocationHandler {
+        final String uri;
+        String method = "GET";
+        Map<String, String> headers = new LinkedHashMap<>();
+        String body;
+        List<Object> written = new CopyOnWriteArrayList<>();
+        Map<String, List<Action<Object>>> actions = new ConcurrentHashMap<>();
+        Object proxy;
+
+        Loopback(String uri) {
+            this.uri = uri;
+        }
+
+        <T> T proxy(Class<T> type) {
+            proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this);
+            return type.cast(proxy);
+        }
+
+        // Returns the id of the transport given in the first message
+        String id() {
+            for (Object data : written) {
+                Matcher matcher = ID.matcher(data.toString());
+                if (matcher.find()) {
+                    return matcher.group(1);
+                }
+            }
+            throw new IllegalStateException("No transport id in " + written);
+        }
+
+        @SuppressWarnings("unchecked")
+        void fire(String name, Object data) {
+            List<Action<Object>> list = actions.get(name);
+            if (list != null) {
+                for (Action<Object> action : list) {
+                    action.on(data);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            switch (name) {
+            case "uri":
+                return uri;
+            case "method":
+                return method;
+            case "header":
+                return headers.get(args[0]);
+            case "headerNames":
+                return headers.keySet();
+            case "read":
+            case "readAsText":
+            case "readAsBinary":
+                Object data = name.equals("readAsBinary") ? ByteBuffer.wrap(body.getBytes()) : body;
+                fire("onchunk", data);
+                fire("onend", null);
+                fire("onbody", data);
+                break;
+            case "send":
+            case "write":
+                written.add(args[0]);
+                break;
+            case "end":
+                if (args != null) {
+                    written.add(args[0]);
+                }
+                fire("onfinish", null);
+                break;
+            case "close":
+                fire("onclose", null);
+                break;
+            case "toString":
+                return "Loopback@" + uri;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                if (name.startsWith("on") && args != null && args.length == 1 && args[0] instanceof Action) {
+                    List<Action<Object>> list = actions.get(name);
+                    if (list == null) {
+                        list = new CopyOnWriteArrayList<>();
+                        actions.put(name, list);
+                    }
+                    list.add((Action<Object>) args[0]);
+                }
+                break;
+            }
+            Class<?> type = m.getReturnType();
+            if (type.isInstance(proxy)) {
+                return proxy;
+            }
+            if (type == boolean.class) {
+                return false;
+            }
+            return type.isPrimitive() && type != void.class ? 0 : null;
+        }
+    }
+
+}
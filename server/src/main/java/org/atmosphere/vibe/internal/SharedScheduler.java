@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A scheduler shared by servers and transports to run timed tasks such as
+ * heartbeat checks and a pool of workers to run what the tasks hand off such
+ * as event handlers so that user code doesn't run on the scheduler thread.
+ * <p>
+ * Both are created on first use and their daemon threads end once they have
+ * nothing to do for a second, so they don't need to be stopped. An exception
+ * thrown by a task is logged and doesn't affect other tasks.
+ * <p>
+ * The workers are as many as the available processors, at least four, and
+ * queue up to {@value #QUEUE_CAPACITY} tasks, for example, when heartbeat
+ * checks of many sockets fail at once. If the queue is full, the task runs on
+ * the thread handing it off, typically the scheduler thread, which slows down
+ * timed tasks until the workers catch up instead of dropping the task. For
+ * internal use only.
+ *
+ * @author Donghwan Kim
+ */
+public final class SharedScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedScheduler.class);
+    private static final int QUEUE_CAPACITY = 10000;
+    private static ScheduledThreadPoolExecutor scheduler;
+    private static ThreadPoolExecutor workers;
+
+    private SharedScheduler() {}
+
+    /**
+     * Runs the given task after the given delay in milliseconds.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return scheduler().schedule(new SafeTask(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the given task periodically after the given delay in milliseconds
+     * until the returned future is cancelled.
+     */
+    public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long period) {
+        return scheduler().scheduleWithFixedDelay(new SafeTask(task), delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns an executor running tasks on the shared workers.
+     */
+    public static Executor workers() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                workerPool().execute(new SafeTask(task));
+            }
+        };
+    }
+
+    /**
+     * Stops threads discarding scheduled tasks. They are created again on
+     * next use.
+     */
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("vibe-scheduler"));
+            scheduler.setRemoveOnCancelPolicy(true);
+            scheduler.setKeepAliveTime(1, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+        }
+        return scheduler;
+    }
+
+    private static synchronized ThreadPoolExecutor workerPool() {
+        if (workers == null) {
+            int threads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+            workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new DaemonThreadFactory("vibe-worker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private static class SafeTask implements Runnable {
+        private final Runnable task;
+
+        SafeTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Failed to run {}", task, e);
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast and how many new transports are opened at the same time to
+ * protect transports already opened from a storm of reconnections.
+ * <p>
+ * The open rate is limited by a token bucket with the given rate and burst and
+ * the number of opening transports, which are being handed over to
+ * {@link TransportServer#ontransport(org.atmosphere.vibe.platform.action.Action)}
+ * actions, is limited by the given cap. An instance can be shared by several
+ * transport servers to limit them together.
+ * <p>
+ * Instances may be accessed by multiple threads.
+ *
+ * @author Donghwan Kim
+ */
+public class AdmissionController {
+
+    // The bucket is implemented as the generic cell rate algorithm which
+    // tracks the theoretical arrival time instead of the number of tokens
+    private final long interval;
+    private final long tolerance;
+    private final int maxOpenings;
+    private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+    private final AtomicInteger openings = new AtomicInteger();
+
+    /**
+     * Creates a controller allowing up to {@code rate} transports per second
+     * with bursts of up to {@code burst} transports and up to
+     * {@code maxOpenings} transports being opened at the same time.
+     */
+    public AdmissionController(double rate, int burst, int maxOpenings) {
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tolerance = interval * Math.max(burst - 1, 0);
+        this.maxOpenings = maxOpenings;
+    }
+
+    /**
+     * Returns {@code true} and takes an opening slot if a new transport can be
+     * opened. The slot should be given back by {@link #release()}.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int count = openings.get();
+            if (count >= maxOpenings) {
+                return false;
+            }
+            if (openings.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now);
+            if (next - now > tolerance) {
+                openings.decrementAndGet();
+                return false;
+            }
+            if (arrival.compareAndSet(current, next + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot taken by {@link #tryAcquire()}.
+     */
+    public void release() {
+        openings.decrementAndGet();
+    }
+
+}
@@ -33,6 +33,8 @@ public abstract class BaseServerTransport implements ServerTransport {
 
     protected Actions<String> textActions = new ConcurrentActions<>();
     protected Actions<ByteBuffer> binaryActions = new ConcurrentActions<>();
+    protected Actions<String> writeActions = new ConcurrentActions<>();
+    protected Actions<Void> pongActions = new ConcurrentActions<>();
     protected Actions<Throwable> errorActions = new ConcurrentActions<Throwable>()
     .add(new Action<Throwable>() {
         @Override
@@ -47,6 +49,7 @@ public abstract class BaseServerTransport implements ServerTransport {
             logger.trace("{} has been closed", BaseServerTransport.this);
             stateRef.set(State.CLOSED);
             textActions.disable();
+            pongActions.disable();
             errorActions.disable();
         }
     });
@@ -65,11 +68,34 @@ public abstract class BaseServerTransport implements ServerTransport {
         return this;
     }
 
+    @Override
+    public ServerTransport onpong(Action<Void> action) {
+        pongActions.add(action);
+        return this;
+    }
+
+    /**
+     * Attaches an action to be called with a text message once written. A
+     * subclass fires {@link #writeActions} if it's a {@link PriorityTransport}.
+     */
+    public ServerTransport onwrite(Action<String> action) {
+        writeActions.add(action);
+        return this;
+    }
+
     @Override
     public BaseServerTransport send(String data) {
+        return send(data, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Sends a text message with the given priority. It is for
+     * {@link PriorityTransport}.
+     */
+    public BaseServerTransport send(String data, Priority priority) {
         logger.trace("{} sends a text message {}", this, data);
         if (stateRef.get() == State.OPEN) {
-            doSend(data);
+            doSend(data, priority);
         } else {
             errorActions.fire(new RuntimeException("notopened"));
         }
@@ -87,8 +113,56 @@ public abstract class BaseServerTransport implements ServerTransport {
         return this;
     }
 
+    /**
+     * Sends a text message encoded in UTF-8 in the given buffer and releases
+     * the buffer. It is for {@link Utf8Transport}.
+     */
+    public ServerTransport send(PooledBuffer data) {
+        return send(data, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Sends a text message encoded in UTF-8 in the given buffer with the given
+     * priority and releases the buffer. It is for {@link PriorityTransport}.
+     */
+    public ServerTransport send(PooledBuffer data, Priority priority) {
+        logger.trace("{} sends a text message {}", this, data);
+        if (stateRef.get() == State.OPEN) {
+            doSend(data, priority);
+        } else {
+            data.release();
+            errorActions.fire(new RuntimeException("notopened"));
+        }
+        return this;
+    }
+
     protected abstract void doSend(String data);
 
+    /**
+     * Ignores the given priority by default.
+     */
+    protected void doSend(String data, Priority priority) {
+        doSend(data);
+    }
+
+    /**
+     * Decodes the given buffer and sends it as a string by default.
+     */
+    protected void doSend(PooledBuffer data) {
+        try {
+            doSend(data.text());
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Ignores the given priority by default.
+     */
+    protected void doSend(PooledBuffer data, Priority priority) {
+        doSend(data);
+    }
+
     protected abstract void doSend(ByteBuffer data);
 
     @Override
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable byte buffers to write outgoing messages in.
+ * <p>
+ * A buffer acquired from the pool should be released exactly once. For tests,
+ * leak detection records where each outstanding buffer was acquired.
+ * <p>
+ * Instances may be accessed by multiple threads.
+ *
+ * @author Donghwan Kim
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<PooledBuffer, Throwable> traces = new ConcurrentHashMap<>();
+    private volatile boolean leakDetection;
+
+    /**
+     * Creates a pool keeping up to <code>1024</code> buffers of
+     * <code>8</code>KB.
+     */
+    public BufferPool() {
+        this(8192, 1024);
+    }
+
+    /**
+     * Creates a pool keeping up to the given number of buffers of the given
+     * size. A message exceeding the size is written in a larger buffer which
+     * is not kept in the pool.
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Acquires a buffer.
+     */
+    public PooledBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        outstanding.incrementAndGet();
+        PooledBuffer pooledBuffer = new PooledBuffer(this, buffer);
+        if (leakDetection) {
+            traces.put(pooledBuffer, new Throwable("Acquired here"));
+        }
+        return pooledBuffer;
+    }
+
+    void release(PooledBuffer pooledBuffer, ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+        traces.remove(pooledBuffer);
+        recycle(buffer);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxBuffers) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of buffers which have been acquired but not released.
+     */
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Whether to record where each buffer is acquired to find leaks. It is
+     * expensive so should be used only in tests. The default is
+     * {@code false}.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Returns traces of where buffers which have not been released yet were
+     * acquired, if leak detection is enabled.
+     */
+    public List<Throwable> leaks() {
+        return new ArrayList<>(traces.values());
+    }
+
+}
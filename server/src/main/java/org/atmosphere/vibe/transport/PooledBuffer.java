@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A buffer acquired from {@link BufferPool}. Bytes are written through
+ * {@link PooledBuffer#outputStream()} after a small headroom so that a
+ * transport can prepend its framing without copying the content.
+ *
+ * @author Donghwan Kim
+ */
+public class PooledBuffer {
+
+    /**
+     * The number of bytes which can be prepended.
+     */
+    public static final int HEADROOM = 16;
+    private final BufferPool pool;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private ByteBuffer buffer;
+    private int start = HEADROOM;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        buffer.clear().position(HEADROOM);
+    }
+
+    /**
+     * Returns a stream appending bytes to this buffer.
+     */
+    public OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                ensure(1);
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                append(bytes, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Appends the given bytes.
+     */
+    public PooledBuffer append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    private PooledBuffer append(byte[] bytes, int offset, int length) {
+        ensure(length);
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Prepends the given bytes in the headroom.
+     */
+    public PooledBuffer prepend(byte[] bytes) {
+        if (bytes.length > start) {
+            throw new IllegalStateException("Not enough headroom");
+        }
+        start -= bytes.length;
+        System.arraycopy(bytes, 0, buffer.array(), buffer.arrayOffset() + start, bytes.length);
+        return this;
+    }
+
+    /**
+     * Returns a view of the written bytes.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(buffer.position()).position(start);
+        return view;
+    }
+
+    /**
+     * Decodes the written bytes as UTF-8.
+     */
+    public String text() {
+        return new String(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gives this buffer back to the pool. It shouldn't be used after that. This
+     * method has no side effect if called more than once.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            pool.release(this, buffer);
+        }
+    }
+
+    // Grows the buffer into a larger one not to be pooled if it's not enough
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            pool.recycle(buffer);
+            buffer = larger;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+/**
+ * The priority of an outgoing message in {@link PriorityTransport}.
+ *
+ * @author Donghwan Kim
+ */
+public enum Priority {
+
+    /**
+     * For messages keeping the connection alive like heartbeat and reply.
+     * They overtake any other message.
+     */
+    CONTROL,
+
+    /**
+     * For ordinary messages. It's the default.
+     */
+    INTERACTIVE,
+
+    /**
+     * For large or non-urgent messages. They yield to other messages but are
+     * guaranteed a share of the connection.
+     */
+    BULK
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of queues per {@link Priority} for {@link PriorityTransport}.
+ * {@link Priority#CONTROL} elements are always taken first. Otherwise,
+ * {@link Priority#INTERACTIVE} elements are taken before
+ * {@link Priority#BULK} ones except that one of every
+ * {@link PriorityQueues#BULK_SHARE} elements is taken from the bulk queue so
+ * that bulk messages don't starve.
+ * <p>
+ * Instances may be accessed by multiple threads.
+ *
+ * @author Donghwan Kim
+ */
+public class PriorityQueues<E> {
+
+    /**
+     * The interval of turns given to bulk elements.
+     */
+    public static final int BULK_SHARE = 4;
+    private final Queue<E> control = new ConcurrentLinkedQueue<>();
+    private final Queue<E> interactive = new ConcurrentLinkedQueue<>();
+    private final Queue<E> bulk = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /**
+     * Adds the given element to the queue of the given priority.
+     */
+    public void offer(E element, Priority priority) {
+        switch (priority) {
+        case CONTROL:
+            control.offer(element);
+            break;
+        case BULK:
+            bulk.offer(element);
+            break;
+        default:
+            interactive.offer(element);
+            break;
+        }
+    }
+
+    /**
+     * Removes and returns the next element or {@code null} if empty.
+     */
+    public E poll() {
+        E element = control.poll();
+        if (element != null) {
+            return element;
+        }
+        if (turn.incrementAndGet() % BULK_SHARE == 0) {
+            element = bulk.poll();
+            if (element != null) {
+                return element;
+            }
+        }
+        element = interactive.poll();
+        return element != null ? element : bulk.poll();
+    }
+
+    /**
+     * Returns {@code true} if there is no element.
+     */
+    public boolean isEmpty() {
+        return control.isEmpty() && interactive.isEmpty() && bulk.isEmpty();
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import org.atmosphere.vibe.platform.action.Action;
+
+/**
+ * {@link ServerTransport} which queues outgoing messages by {@link Priority}
+ * when they can't be written immediately so that urgent ones overtake the
+ * others.
+ *
+ * @author Donghwan Kim
+ */
+public interface PriorityTransport extends ServerTransport {
+
+    /**
+     * Sends a text message with the given priority through the connection.
+     */
+    ServerTransport send(String data, Priority priority);
+
+    /**
+     * Sends a text message encoded in UTF-8 in the given buffer with the given
+     * priority through the connection. The transport takes over the buffer and
+     * releases it once written.
+     */
+    ServerTransport send(PooledBuffer data, Priority priority);
+
+    /**
+     * Attaches an action to be called with a text message sent as a string
+     * when it's written to the connection. As messages may overtake one
+     * another, it tells the order in which the client receives them.
+     */
+    ServerTransport onwrite(Action<String> action);
+
+}
@@ -52,6 +52,13 @@ public interface ServerTransport {
      */
     ServerTransport onbinary(Action<ByteBuffer> action);
 
+    /**
+     * Attaches an action for the protocol-level pong which tells the other
+     * end is alive without a message. A transport whose protocol has no such
+     * frame never fires it.
+     */
+    ServerTransport onpong(Action<Void> action);
+
     /**
      * Sends a text message through the connection.
      */
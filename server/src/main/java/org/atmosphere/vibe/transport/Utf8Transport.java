@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+/**
+ * {@link ServerTransport} which can write a text message already encoded in
+ * UTF-8 as it is instead of encoding a string again.
+ *
+ * @author Donghwan Kim
+ */
+public interface Utf8Transport extends ServerTransport {
+
+    /**
+     * Sends a text message encoded in UTF-8 in the given buffer through the
+     * connection. The transport takes over the buffer and releases it once
+     * written.
+     */
+    ServerTransport send(PooledBuffer data);
+
+}
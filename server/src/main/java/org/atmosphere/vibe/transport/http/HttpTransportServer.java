@@ -21,28 +21,38 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.atmosphere.vibe.internal.SharedScheduler;
 import org.atmosphere.vibe.platform.action.Action;
 import org.atmosphere.vibe.platform.action.Actions;
 import org.atmosphere.vibe.platform.action.ConcurrentActions;
 import org.atmosphere.vibe.platform.action.VoidAction;
 import org.atmosphere.vibe.platform.http.HttpStatus;
 import org.atmosphere.vibe.platform.http.ServerHttpExchange;
+import org.atmosphere.vibe.transport.AdmissionController;
 import org.atmosphere.vibe.transport.BaseServerTransport;
+import org.atmosphere.vibe.transport.PooledBuffer;
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityQueues;
+import org.atmosphere.vibe.transport.PriorityTransport;
 import org.atmosphere.vibe.transport.ServerTransport;
 import org.atmosphere.vibe.transport.TransportServer;
+import org.atmosphere.vibe.transport.Utf8Transport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +65,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * It processes transport whose URI whose protocol is either {@code http} or
  * {@code https} and transport parameter is either {@code stream} or
  * {@code longpoll} like {@code http://localhost:8080/vibe?transport=stream}.
+ * <p>
+ * The following options are configurable.
+ * <ul>
+ * <li>{@link HttpTransportServer#setAdmissionController(AdmissionController)}</li>
+ * <li>{@link HttpTransportServer#setPollTimeout(int)}</li>
+ * <li>{@link HttpTransportServer#setMaxMessageSize(int)}</li>
+ * </ul>
  * 
  * @author Donghwan Kim
  */
@@ -77,7 +94,12 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
             });
         }
     });
+    private static final HttpStatus SERVICE_UNAVAILABLE = new HttpStatus(503, "Service Unavailable");
+    private static final HttpStatus PAYLOAD_TOO_LARGE = new HttpStatus(413, "Payload Too Large");
     private Map<String, BaseTransport> transports = new ConcurrentHashMap<>();
+    private AdmissionController admissionController;
+    private Sweeper sweeper = new Sweeper();
+    private int maxMessageSize = 1024 * 1024;
 
     @Override
     public void on(final ServerHttpExchange http) {
@@ -96,19 +118,31 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
         case "GET": {
             switch (params.get("when")) {
             case "open": {
-                String transportName = params.get("transport");
-                switch (transportName) {
-                case "stream":
-                    transportActions.fire(new StreamTransport(http));
-                    break;
-                case "longpoll":
-                    transportActions.fire(new LongpollTransport(http));
-                    break;
-                default:
-                    log.error("Transport, {}, is not implemented", transportName);
-                    http.setStatus(HttpStatus.NOT_IMPLEMENTED).end();
+                AdmissionController admission = admissionController;
+                if (admission != null && !admission.tryAcquire()) {
+                    log.trace("{}'s request has been rejected by admission control", http);
+                    http.setStatus(SERVICE_UNAVAILABLE).end();
                     break;
                 }
+                try {
+                    String transportName = params.get("transport");
+                    switch (transportName) {
+                    case "stream":
+                        transportActions.fire(new StreamTransport(http));
+                        break;
+                    case "longpoll":
+                        transportActions.fire(new LongpollTransport(http, sweeper));
+                        break;
+                    default:
+                        log.error("Transport, {}, is not implemented", transportName);
+                        http.setStatus(HttpStatus.NOT_IMPLEMENTED).end();
+                        break;
+                    }
+                } finally {
+                    if (admission != null) {
+                        admission.release();
+                    }
+                }
                 break;
             }
             case "poll": {
@@ -145,36 +179,10 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
             case "text/plain; charset=utf8":
             case "text/plain;charset=utf-8":
             case "text/plain;charset=utf8":
-                http.onbody(new Action<String>() {
-                    @Override
-                    public void on(String body) {
-                        BaseTransport transport = transports.get(id);
-                        if (transport != null) {
-                            transport.handleText(body.substring("data=".length()));
-                        } else {
-                            log.error("A POST message arrived but no transport#{} is found", id);
-                            http.setStatus(HttpStatus.INTERNAL_SERVER_ERROR);
-                        }
-                        http.end();
-                    };
-                })
-                .readAsText();
+                read(http, id, new TextMessageReader());
                 break;
             case "application/octet-stream":
-                http.onbody(new Action<ByteBuffer>() {
-                    @Override
-                    public void on(ByteBuffer body) {
-                        BaseTransport transport = transports.get(id);
-                        if (transport != null) {
-                            transport.handleBinary(body);
-                        } else {
-                            log.error("A POST message arrived but no transport#{} is found", id);
-                            http.setStatus(HttpStatus.INTERNAL_SERVER_ERROR);
-                        }
-                        http.end();
-                    };
-                })
-                .readAsBinary();
+                read(http, id, new BinaryMessageReader());
                 break;
             default:
                 BaseTransport transport = transports.get(id);
@@ -195,12 +203,103 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
         }
     }
     
+    // Reads a message posted to the given transport chunk by chunk so that an
+    // oversized one is rejected without being buffered
+    private void read(final ServerHttpExchange http, final String id, final MessageReader<?> reader) {
+        final BaseTransport transport = transports.get(id);
+        if (transport == null) {
+            log.error("A POST message arrived but no transport#{} is found", id);
+            http.setStatus(HttpStatus.INTERNAL_SERVER_ERROR).end();
+            return;
+        }
+        long length = -1;
+        String contentLength = http.header("content-length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                log.trace("{} is not a valid content-length", contentLength);
+            }
+        }
+        reader.init(length, maxMessageSize);
+        if (reader.exceeded) {
+            reject(http, transport);
+            return;
+        }
+        // Responds as soon as the message exceeds the max size and ignores
+        // the rest of the body
+        reader.exceedAction = new VoidAction() {
+            @Override
+            public void on() {
+                reject(http, transport);
+            }
+        };
+        http.onchunk(reader).onend(new VoidAction() {
+            @Override
+            public void on() {
+                if (!reader.exceeded) {
+                    reader.deliverTo(transport);
+                    http.end();
+                }
+            }
+        });
+        // The body may be read synchronously once it's requested
+        reader.read(http);
+    }
+
+    private void reject(ServerHttpExchange http, BaseTransport transport) {
+        log.error("A POST message to transport#{} exceeded the max size, {}", transport.id(), maxMessageSize);
+        // The client can't go on as the message is lost
+        transport.handleError(new RuntimeException("Message exceeded the max size, " + maxMessageSize));
+        transport.close();
+        http.setStatus(PAYLOAD_TOO_LARGE).end();
+    }
+
     @Override
     public HttpTransportServer ontransport(Action<ServerTransport> action) {
         transportActions.add(action);
         return this;
     }
 
+    /**
+     * An admission controller to limit requests opening a new transport. A
+     * rejected request ends with <code>503 Service Unavailable</code>
+     * immediately. The default is {@code null} which accepts every request.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * The maximum size of a message posted by the client, in characters for
+     * a text message and in bytes for a binary message. A request exceeding
+     * it is detected while the body is read, by its content-length header if
+     * any, and ends with <code>413 Payload Too Large</code> closing the
+     * transport. The default is <code>1048576</code>.
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * A timeout in milliseconds for the client to send the next poll request
+     * after the previous one has completed. Otherwise, the long polling
+     * transport is closed. The default is <code>3</code>s.
+     */
+    public void setPollTimeout(int pollTimeout) {
+        sweeper.timeout = pollTimeout;
+    }
+
+    /**
+     * Stops checking long polling transports for the next poll. It isn't
+     * required as the check stops by itself while there is no transport
+     * waiting for one, but it releases the check right away e.g. when the
+     * application is undeployed.
+     */
+    public void close() {
+        sweeper.stop();
+    }
+
     /**
      * For internal use only.
      */
@@ -242,16 +341,112 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
         return query.deleteCharAt(query.length() - 1).toString();
     }
 
+    /**
+     * Closes long polling transports which didn't receive the next poll in
+     * time. A single task on the shared scheduler checks every transport so
+     * that it doesn't cost a thread per transport, and it's scheduled only
+     * while there are transports waiting for the next poll.
+     * 
+     * @author Donghwan Kim
+     */
+    private static class Sweeper implements Runnable {
+
+        private static final Logger log = LoggerFactory.getLogger(Sweeper.class);
+        private volatile int timeout = 3000;
+        // As the timeout is the same, deadlines are in order they are added
+        private Queue<Deadline> deadlines = new ConcurrentLinkedQueue<>();
+        private AtomicReference<ScheduledFuture<?>> future = new AtomicReference<>();
+        private volatile boolean stopped;
+
+        void expireLater(LongpollTransport transport) {
+            long time = System.currentTimeMillis() + timeout;
+            transport.deadline.set(time);
+            deadlines.offer(new Deadline(transport, time));
+            if (future.get() == null) {
+                schedule();
+            }
+        }
+
+        private synchronized void schedule() {
+            if (future.get() == null && !stopped) {
+                future.set(SharedScheduler.scheduleWithFixedDelay(this, 250, 250));
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            ScheduledFuture<?> f = future.getAndSet(null);
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            final List<LongpollTransport> expired = new ArrayList<>();
+            Deadline deadline;
+            while ((deadline = deadlines.peek()) != null && deadline.time <= now) {
+                deadlines.poll();
+                // A poll may have arrived in the meantime
+                if (deadline.transport.deadline.compareAndSet(deadline.time, 0)) {
+                    expired.add(deadline.transport);
+                }
+            }
+            if (!expired.isEmpty()) {
+                // Closing runs user code which shouldn't block the scheduler
+                SharedScheduler.workers().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (LongpollTransport transport : expired) {
+                            try {
+                                transport.expire();
+                            } catch (RuntimeException e) {
+                                log.error("Failed to expire {}", transport, e);
+                            }
+                        }
+                    }
+                });
+            }
+            if (deadlines.isEmpty()) {
+                synchronized (this) {
+                    if (deadlines.isEmpty()) {
+                        ScheduledFuture<?> f = future.getAndSet(null);
+                        if (f != null) {
+                            f.cancel(false);
+                        }
+                    }
+                }
+                // A deadline may have been added before the task is cancelled
+                if (!deadlines.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+    }
+
+    private static class Deadline {
+        final LongpollTransport transport;
+        final long time;
+
+        Deadline(LongpollTransport transport, long time) {
+            this.transport = transport;
+            this.time = time;
+        }
+    }
+
     /**
      * Base class for HTTP transport.
      * 
      * @author Donghwan Kim
      */
-    private static abstract class BaseTransport extends BaseServerTransport {
+    private static abstract class BaseTransport extends BaseServerTransport implements Utf8Transport {
 
         protected String id = UUID.randomUUID().toString();
-        // For JSON processing in long polling and Base64 processing in streaming
-        protected ObjectMapper mapper = new ObjectMapper();
+        // For JSON processing in long polling and Base64 processing in
+        // streaming, shared by transports to keep per-connection heap small
+        protected static final ObjectMapper mapper = new ObjectMapper();
         protected final ServerHttpExchange http;
         protected final Map<String, String> params;
 
@@ -299,6 +494,8 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
     private static class StreamTransport extends BaseTransport {
 
         private final static String text2KB = CharBuffer.allocate(2048).toString().replace('\0', ' ');
+        private final static byte[] textPrefix = "data: 1".getBytes(StandardCharsets.UTF_8);
+        private final static byte[] suffix = "\n\n".getBytes(StandardCharsets.UTF_8);
         
         public StreamTransport(ServerHttpExchange http) {
             super(http);
@@ -336,13 +533,42 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
             sendEventStreamMessage("2" + mapper.convertValue(data, String.class));
         }
 
+        @Override
+        protected void doSend(PooledBuffer data) {
+            ByteBuffer bytes = data.buffer();
+            for (int i = bytes.position(); i < bytes.limit(); i++) {
+                byte b = bytes.get(i);
+                if (b == '\r' || b == '\n') {
+                    // Falls back to string to split lines
+                    super.doSend(data);
+                    return;
+                }
+            }
+            // A single line message is framed in place. The platform may
+            // still be writing after write returns and tells nothing of its
+            // completion, so what's written is a copy and the buffer goes
+            // back to the pool right away
+            ByteBuffer framed;
+            try {
+                data.prepend(textPrefix).append(suffix);
+                ByteBuffer view = data.buffer();
+                framed = ByteBuffer.allocate(view.remaining());
+                framed.put(view).flip();
+            } finally {
+                data.release();
+            }
+            synchronized (this) {
+                http.write(framed);
+            }
+        }
+
         private synchronized void sendEventStreamMessage(String data) {
-            String payload = "";
+            StringBuilder payload = new StringBuilder(data.length() + 16);
             for (String line : data.split("\r\n|\r|\n")) {
-                payload += "data: " + line + "\n";
+                payload.append("data: ").append(line).append("\n");
             }
-            payload += "\n";
-            http.write(payload);
+            payload.append("\n");
+            http.write(payload.toString());
         }
 
         @Override
@@ -357,17 +583,31 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
      * 
      * @author Donghwan Kim
      */
-    private static class LongpollTransport extends BaseTransport {
+    private static class LongpollTransport extends BaseTransport implements PriorityTransport {
 
         private AtomicReference<ServerHttpExchange> httpRef = new AtomicReference<>();
         private AtomicBoolean aborted = new AtomicBoolean();
         // Regard it as http.endedWithMessage
         private AtomicBoolean endedWithMessage = new AtomicBoolean();
-        private AtomicReference<Timer> closeTimer = new AtomicReference<>();
-        private Queue<Object> cache = new ConcurrentLinkedQueue<>();
+        // The time when it will be closed if the next poll doesn't arrive
+        private AtomicLong deadline = new AtomicLong();
+        private final Sweeper sweeper;
+        private PriorityQueues<Object> cache = new PriorityQueues<>();
 
-        public LongpollTransport(ServerHttpExchange http) {
+        public LongpollTransport(ServerHttpExchange http, Sweeper sweeper) {
             super(http);
+            this.sweeper = sweeper;
+            closeActions.add(new VoidAction() {
+                @Override
+                public void on() {
+                    Object cached;
+                    while ((cached = cache.poll()) != null) {
+                        if (cached instanceof PooledBuffer) {
+                            ((PooledBuffer) cached).release();
+                        }
+                    }
+                }
+            });
             refresh(http);
         }
 
@@ -379,14 +619,7 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
                     if (parameters.get("when").equals("poll") && !endedWithMessage.get()) {
                         closeActions.fire();
                     } else {
-                        Timer timer = new Timer(true);
-                        timer.schedule(new TimerTask() {
-                            @Override
-                            public void run() {
-                                closeActions.fire();
-                            }
-                        }, 3000);
-                        closeTimer.set(timer);
+                        sweeper.expireLater(LongpollTransport.this);
                     }
                 }
             })
@@ -411,18 +644,17 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
                 break;
             case "poll":
                 endedWithMessage.set(false);
-                Timer timer = closeTimer.getAndSet(null);
-                if (timer != null) {
-                    timer.cancel();
-                }
+                deadline.set(0);
                 if (aborted.get()) {
                     http.end();
                 } else {
                     Object cached = cache.poll();
                     if (cached != null) {
-                        // As cached is either String or ByteBuffer
+                        // As cached is either String, PooledBuffer or ByteBuffer
                         if (cached instanceof String) {
                             endWithMessage(http, (String) cached);
+                        } else if (cached instanceof PooledBuffer) {
+                            endWithMessage(http, (PooledBuffer) cached);
                         } else {
                             endWithMessage(http, (ByteBuffer) cached);
                         }
@@ -439,19 +671,29 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
             }
         }
 
+        void expire() {
+            closeActions.fire();
+        }
+
         @Override
         protected void doSend(String data) {
+            doSend(data, Priority.INTERACTIVE);
+        }
+
+        @Override
+        protected void doSend(String data, Priority priority) {
             ServerHttpExchange http = httpRef.getAndSet(null);
             if (http != null) {
                 endWithMessage(http, data);
             } else {
-                cache.offer(data);
+                cache.offer(data, priority);
             }
         }
 
         // Regard it as http.endWithMessage
         private void endWithMessage(ServerHttpExchange http, String data) {
             endedWithMessage.set(true);
+            writeActions.fire(data);
             boolean jsonp = "true".equals(params.get("jsonp"));
             if (jsonp) {
                 try {
@@ -463,13 +705,57 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
             http.setHeader("content-type", "text/" + (jsonp ? "javascript" : "plain") + "; charset=utf-8").end(data);
         }
 
+        @Override
+        protected void doSend(PooledBuffer data) {
+            doSend(data, Priority.INTERACTIVE);
+        }
+
+        @Override
+        protected void doSend(PooledBuffer data, Priority priority) {
+            if ("true".equals(params.get("jsonp"))) {
+                // JSONP needs the message as a string literal
+                try {
+                    doSend(data.text(), priority);
+                } finally {
+                    data.release();
+                }
+                return;
+            }
+            ServerHttpExchange http = httpRef.getAndSet(null);
+            if (http != null) {
+                endWithMessage(http, data);
+            } else {
+                cache.offer(data, priority);
+            }
+        }
+
+        // Regard it as http.endWithMessage
+        private void endWithMessage(ServerHttpExchange http, final PooledBuffer data) {
+            endedWithMessage.set(true);
+            // The platform may still be writing after end returns so the
+            // buffer is released once the response completes or is aborted
+            VoidAction release = new VoidAction() {
+                @Override
+                public void on() {
+                    data.release();
+                }
+            };
+            try {
+                http.onfinish(release).onclose(release)
+                .setHeader("content-type", "text/plain; charset=utf-8").end(data.buffer());
+            } catch (RuntimeException e) {
+                data.release();
+                throw e;
+            }
+        }
+
         @Override
         protected void doSend(ByteBuffer data) {
             ServerHttpExchange http = httpRef.getAndSet(null);
             if (http != null) {
                 endWithMessage(http, data);
             } else {
-                cache.offer(data);
+                cache.offer(data, Priority.INTERACTIVE);
             }
         }
 
@@ -491,4 +777,120 @@ public class HttpTransportServer implements TransportServer<ServerHttpExchange>
 
     }
 
+    /**
+     * Accumulates chunks of a posted message up to the max size.
+     */
+    private static abstract class MessageReader<T> implements Action<T> {
+        int maxSize;
+        boolean exceeded;
+        int size;
+        VoidAction exceedAction;
+
+        // Length is the request's content-length or -1 if unknown
+        abstract void init(long length, int maxSize);
+
+        abstract void read(ServerHttpExchange http);
+
+        abstract void deliverTo(BaseTransport transport);
+
+        // Returns false if the message would exceed the max size
+        boolean grow(int length) {
+            if (exceeded) {
+                return false;
+            }
+            if (size + (long) length > maxSize) {
+                exceeded = true;
+                if (exceedAction != null) {
+                    exceedAction.on();
+                }
+                return false;
+            }
+            size += length;
+            return true;
+        }
+    }
+
+    /**
+     * Reads a text message skipping its {@code data=} prefix as chunks
+     * arrive instead of copying it again after reading.
+     */
+    private static class TextMessageReader extends MessageReader<String> {
+        private static final int PREFIX_LENGTH = "data=".length();
+        // The number of prefix characters yet to be skipped
+        private int prefix = PREFIX_LENGTH;
+        private StringBuilder message = new StringBuilder();
+
+        @Override
+        void init(long length, int maxSize) {
+            this.maxSize = maxSize;
+            // A character takes at most four bytes in UTF-8 so the exact
+            // limit is enforced while reading. The declared length isn't
+            // trusted to size the buffer either
+            exceeded = length - PREFIX_LENGTH > maxSize * 4L;
+        }
+
+        @Override
+        void read(ServerHttpExchange http) {
+            http.readAsText();
+        }
+
+        @Override
+        public void on(String chunk) {
+            int start = Math.min(prefix, chunk.length());
+            prefix -= start;
+            if (grow(chunk.length() - start)) {
+                message.append(chunk, start, chunk.length());
+            } else {
+                message = null;
+            }
+        }
+
+        @Override
+        void deliverTo(BaseTransport transport) {
+            transport.handleText(message.toString());
+        }
+    }
+
+    /**
+     * Reads a binary message into a single buffer.
+     */
+    private static class BinaryMessageReader extends MessageReader<ByteBuffer> {
+        private ByteBuffer message;
+
+        @Override
+        void init(long length, int maxSize) {
+            this.maxSize = maxSize;
+            exceeded = length > maxSize;
+            // The declared length isn't trusted to size the buffer as a
+            // client could declare a large one and trickle bytes. It grows
+            // by doubling while reading
+            message = ByteBuffer.allocate(length > 0 && length < 256 ? (int) length : 256);
+        }
+
+        @Override
+        void read(ServerHttpExchange http) {
+            http.readAsBinary();
+        }
+
+        @Override
+        public void on(ByteBuffer chunk) {
+            if (!grow(chunk.remaining())) {
+                message = null;
+                return;
+            }
+            if (message.remaining() < chunk.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(Math.max(message.capacity() * 2, size), maxSize));
+                message.flip();
+                message = larger.put(message);
+            }
+            message.put(chunk);
+        }
+
+        @Override
+        void deliverTo(BaseTransport transport) {
+            message.flip();
+            transport.handleBinary(message);
+        }
+    }
+
 }
@@ -16,13 +16,21 @@
 package org.atmosphere.vibe.transport.websocket;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.atmosphere.vibe.HeartbeatFailedException;
+import org.atmosphere.vibe.internal.SharedScheduler;
 import org.atmosphere.vibe.platform.action.Action;
 import org.atmosphere.vibe.platform.action.Actions;
 import org.atmosphere.vibe.platform.action.ConcurrentActions;
 import org.atmosphere.vibe.platform.action.VoidAction;
 import org.atmosphere.vibe.platform.websocket.ServerWebSocket;
+import org.atmosphere.vibe.transport.AdmissionController;
 import org.atmosphere.vibe.transport.BaseServerTransport;
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityQueues;
+import org.atmosphere.vibe.transport.PriorityTransport;
 import org.atmosphere.vibe.transport.ServerTransport;
 import org.atmosphere.vibe.transport.TransportServer;
 import org.slf4j.Logger;
@@ -35,6 +43,18 @@ import org.slf4j.LoggerFactory;
  * {@code wss} like {@code ws://localhost:8080/vibe}. Because WebSocket protocol
  * itself meets transport's requirements, a produced transport is actually a
  * thread-safe version of {@link ServerWebSocket}.
+ * <p>
+ * Outgoing frames are put into queues by {@link Priority} per transport and
+ * written by whichever sending thread wins the right to drain them, so that a
+ * thread never waits for another thread's write and control frames overtake
+ * backed up data.
+ * <p>
+ * The following options are configurable.
+ * <ul>
+ * <li>{@link WebSocketTransportServer#setAdmissionController(AdmissionController)}</li>
+ * <li>{@link WebSocketTransportServer#setPinger(Pinger)}</li>
+ * <li>{@link WebSocketTransportServer#setPingInterval(int)}</li>
+ * </ul>
  * 
  * @author Donghwan Kim
  */
@@ -54,10 +74,29 @@ public class WebSocketTransportServer implements TransportServer<ServerWebSocket
             });
         }
     });
+    private AdmissionController admissionController;
+    private Pinger pinger;
+    private int pingInterval = 20000;
 
     @Override
     public void on(ServerWebSocket ws) {
-        transportActions.fire(new DefaultTransport(ws));
+        AdmissionController admission = admissionController;
+        if (admission != null && !admission.tryAcquire()) {
+            log.trace("{} has been rejected by admission control", ws);
+            ws.close();
+            return;
+        }
+        try {
+            DefaultTransport transport = new DefaultTransport(ws);
+            if (pinger != null) {
+                transport.ping(pinger, pingInterval);
+            }
+            transportActions.fire(transport);
+        } finally {
+            if (admission != null) {
+                admission.release();
+            }
+        }
     }
 
     @Override
@@ -66,14 +105,79 @@ public class WebSocketTransportServer implements TransportServer<ServerWebSocket
         return this;
     }
 
+    /**
+     * An admission controller to limit WebSockets opening a new transport. A
+     * rejected WebSocket is closed immediately. The default is {@code null}
+     * which accepts every WebSocket.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * A pinger to check if the other end of each WebSocket is alive by
+     * protocol-level ping and pong. If a pong doesn't arrive until the next
+     * ping, the transport fires {@link HeartbeatFailedException} and closes.
+     * The default is {@code null} which doesn't ping. See
+     * {@code SessionPinger} of the {@code vibe-server-jwa} module for
+     * WebSockets of Java API for WebSocket.
+     * <p>
+     * It keeps dead WebSockets from lingering without JSON heartbeat events
+     * and a pong counts as a heartbeat so that {@code heartbeat} of the
+     * server can be set longer.
+     */
+    public void setPinger(Pinger pinger) {
+        this.pinger = pinger;
+    }
+
+    /**
+     * A ping interval in milliseconds. The default is <code>20</code>s.
+     */
+    public void setPingInterval(int pingInterval) {
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Sends protocol-level ping. As {@link ServerWebSocket} doesn't expose ping
+     * and pong, an implementation should work with the underlying WebSocket
+     * given by {@link ServerWebSocket#unwrap(Class)}.
+     * 
+     * @author Donghwan Kim
+     */
+    public interface Pinger {
+
+        /**
+         * Sends a ping through the given WebSocket and calls the given action
+         * when the pong arrives.
+         */
+        void ping(ServerWebSocket ws, Action<Void> pong);
+
+    }
+
     /**
      * Represents a server-side WebSocket transport.
      * 
      * @author Donghwan Kim
      */
-    private static class DefaultTransport extends BaseServerTransport {
+    private static class DefaultTransport extends BaseServerTransport implements PriorityTransport {
 
+        // Marks the ping request in the outbound queue
+        private static final Object PING = new Object();
         private final ServerWebSocket ws;
+        private final PriorityQueues<Object> outbound = new PriorityQueues<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        // Closes the connection once queued frames are written
+        private final AtomicBoolean closing = new AtomicBoolean();
+        private final AtomicBoolean ponged = new AtomicBoolean(true);
+        private Pinger pinger;
+        private volatile ScheduledFuture<?> pingTask;
+        private final Action<Void> pongAction = new VoidAction() {
+            @Override
+            public void on() {
+                ponged.set(true);
+                pongActions.fire();
+            }
+        };
 
         public DefaultTransport(ServerWebSocket ws) {
             this.ws = ws;
@@ -108,19 +212,90 @@ public class WebSocketTransportServer implements TransportServer<ServerWebSocket
             return ws.uri();
         }
 
+        void ping(Pinger pinger, int interval) {
+            this.pinger = pinger;
+            pingTask = SharedScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean alive = ponged.getAndSet(false);
+                    if (!alive) {
+                        pingTask.cancel(false);
+                    }
+                    // The scheduler thread only hands off writing and
+                    // closing
+                    SharedScheduler.workers().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (alive) {
+                                // Sent in turn not to interleave with frames
+                                outbound.offer(PING, Priority.CONTROL);
+                                drain();
+                            } else {
+                                try {
+                                    errorActions.fire(new HeartbeatFailedException());
+                                } finally {
+                                    close();
+                                }
+                            }
+                        }
+                    });
+                }
+            }, interval, interval);
+            onclose(new VoidAction() {
+                @Override
+                public void on() {
+                    pingTask.cancel(false);
+                }
+            });
+        }
+
         @Override
-        protected synchronized void doSend(String data) {
-            ws.send(data);
+        protected void doSend(String data) {
+            doSend(data, Priority.INTERACTIVE);
         }
 
         @Override
-        protected synchronized void doSend(ByteBuffer data) {
-            ws.send(data);
+        protected void doSend(String data, Priority priority) {
+            outbound.offer(data, priority);
+            drain();
         }
 
         @Override
-        public synchronized void doClose() {
-            ws.close();
+        protected void doSend(ByteBuffer data) {
+            outbound.offer(data, Priority.INTERACTIVE);
+            drain();
+        }
+
+        @Override
+        public void doClose() {
+            closing.set(true);
+            drain();
+        }
+
+        // Only one thread writes at a time and it writes every queued frame
+        // including ones queued by other threads in the meantime
+        private void drain() {
+            while ((!outbound.isEmpty() || closing.get()) && draining.compareAndSet(false, true)) {
+                try {
+                    Object frame;
+                    while ((frame = outbound.poll()) != null) {
+                        // As frame is either String, ByteBuffer or PING
+                        if (frame instanceof String) {
+                            ws.send((String) frame);
+                            writeActions.fire((String) frame);
+                        } else if (frame instanceof ByteBuffer) {
+                            ws.send((ByteBuffer) frame);
+                        } else {
+                            pinger.ping(ws, pongAction);
+                        }
+                    }
+                    if (closing.compareAndSet(true, false)) {
+                        ws.close();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
         }
 
         /**
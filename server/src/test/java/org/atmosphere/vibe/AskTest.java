@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+public class AskTest {
+
+    @Test
+    public void all() {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        Sentence sentence = sentence(3, callbacks);
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        sentence.ask("vote", "?").then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        // resolved and rejected callbacks per socket
+        assertThat(callbacks.size(), is(6));
+        callbacks.get(0).on("a");
+        callbacks.get(3).on("b");
+        assertThat(result.get() == null, is(true));
+        callbacks.get(4).on("c");
+        Ask ask = result.get();
+        assertThat(ask.replies(), is(3));
+        assertThat(ask.resolved(0), is(true));
+        assertThat(ask.rejected(1), is(true));
+        assertThat(ask.data(1), is((Object) "b"));
+        assertThat(ask.expired(), is(false));
+    }
+
+    @Test
+    public void first() {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        sentence(5, callbacks).ask("vote", "?").first(2).then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        callbacks.get(2).on("a");
+        callbacks.get(8).on("b");
+        assertThat(result.get().replies(), is(2));
+        callbacks.get(4).on("c");
+        assertThat(result.get().replies(), is(2));
+    }
+
+    @Test
+    public void firstResolved() {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        List<Action<Void>> closeActions = new ArrayList<>();
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        sentence(3, callbacks, closeActions).ask("vote", "?").first(1).then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        // Neither a rejection nor a close completes it
+        callbacks.get(1).on("no");
+        closeActions.get(1).on(null);
+        assertThat(result.get() == null, is(true));
+        callbacks.get(4).on("yes");
+        assertThat(result.get().replies(), is(3));
+        assertThat(result.get().resolved(2), is(true));
+    }
+
+    @Test
+    public void firstNoneResolved() {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        sentence(2, callbacks).ask("vote", "?").first(1).then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        callbacks.get(1).on("no");
+        assertThat(result.get() == null, is(true));
+        // Completes once every socket has replied
+        callbacks.get(3).on("no");
+        assertThat(result.get().rejected(0), is(true));
+        assertThat(result.get().rejected(1), is(true));
+    }
+
+    @Test
+    public void quorumWithin() throws InterruptedException {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        sentence(4, callbacks).ask("vote", "?").quorum().within(50).then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+                latch.countDown();
+            }
+        });
+        callbacks.get(0).on("a");
+        callbacks.get(2).on("b");
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(result.get().expired(), is(true));
+        assertThat(result.get().replies(), is(2));
+    }
+
+    @Test
+    public void closed() {
+        List<Action<Object>> callbacks = new ArrayList<>();
+        List<Action<Void>> closeActions = new ArrayList<>();
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        sentence(2, callbacks, closeActions).ask("vote", "?").then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        callbacks.get(0).on("a");
+        closeActions.get(1).on(null);
+        assertThat(result.get().replies(), is(2));
+        assertThat(result.get().rejected(1), is(true));
+    }
+
+    @Test
+    public void serverClosed() {
+        DefaultServer server = new DefaultServer();
+        TestTransport transport1 = new TestTransport();
+        TestTransport transport2 = new TestTransport();
+        server.on(transport1);
+        server.on(transport2);
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        server.all().ask("vote", "?").then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        transport1.close();
+        assertThat(result.get() == null, is(true));
+        transport2.close();
+        assertThat(result.get().replies(), is(2));
+        assertThat(result.get().rejected(0), is(true));
+        assertThat(server.asks.isEmpty(), is(true));
+    }
+
+    @Test
+    public void clustered() {
+        final List<Map<String, Object>> published = new CopyOnWriteArrayList<>();
+        ClusteredServer server = new ClusteredServer();
+        server.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                published.add(message);
+            }
+        });
+        try {
+            TestTransport transport = new TestTransport();
+            server.on(transport);
+            final AtomicReference<Ask> result = new AtomicReference<>();
+            server.all().ask("vote", "?").then(new Action<Ask>() {
+                @Override
+                public void on(Ask ask) {
+                    result.set(ask);
+                }
+            });
+            // The request is sent to the local socket but not published
+            assertThat(transport.sent().size(), is(1));
+            for (Map<String, Object> message : published) {
+                assertThat(message.get("method").equals("all"), is(false));
+            }
+            transport.receive("{\"id\":\"1\",\"type\":\"reply\",\"data\":{\"id\":\"1\",\"data\":\"a\",\"exception\":false},\"reply\":false}");
+            assertThat(result.get().resolved(0), is(true));
+            assertThat(result.get().data(0), is((Object) "a"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void clusteredThroughOtherServer() {
+        final ClusteredServer server = new ClusteredServer();
+        try {
+            TestTransport transport = new TestTransport();
+            server.on(transport);
+            final AtomicReference<Ask> result = new AtomicReference<>();
+            // As a decorating server builds a sentence
+            new Sentence(new Action<Action<ServerSocket>>() {
+                @Override
+                public void on(Action<ServerSocket> action) {
+                    server.all(action);
+                }
+            })
+            .ask("vote", "?").then(new Action<Ask>() {
+                @Override
+                public void on(Ask ask) {
+                    result.set(ask);
+                }
+            });
+            transport.close();
+            assertThat(result.get().rejected(0), is(true));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void reply() {
+        DefaultServer server = new DefaultServer();
+        TestTransport transport1 = new TestTransport();
+        TestTransport transport2 = new TestTransport();
+        server.on(transport1);
+        server.on(transport2);
+        final AtomicReference<Ask> result = new AtomicReference<>();
+        server.all().ask("vote", "?").then(new Action<Ask>() {
+            @Override
+            public void on(Ask ask) {
+                result.set(ask);
+            }
+        });
+        // The request is the first event of each socket
+        transport1.receive("{\"id\":\"1\",\"type\":\"reply\",\"data\":{\"id\":\"1\",\"data\":\"a\",\"exception\":false},\"reply\":false}");
+        // A reply to an unknown event is ignored
+        transport2.receive("{\"id\":\"1\",\"type\":\"reply\",\"data\":{\"id\":\"2\",\"data\":\"x\",\"exception\":false},\"reply\":false}");
+        assertThat(result.get() == null, is(true));
+        transport2.receive("{\"id\":\"2\",\"type\":\"reply\",\"data\":{\"id\":\"1\",\"data\":\"b\",\"exception\":true},\"reply\":false}");
+        Ask ask = result.get();
+        assertThat(ask.resolved(0), is(true));
+        assertThat(ask.data(0), is((Object) "a"));
+        assertThat(ask.rejected(1), is(true));
+        assertThat(ask.data(1), is((Object) "b"));
+        assertThat(server.asks.isEmpty(), is(true));
+    }
+
+    private static Sentence sentence(int count, List<Action<Object>> callbacks) {
+        return sentence(count, callbacks, new ArrayList<Action<Void>>());
+    }
+
+    private static Sentence sentence(int count, final List<Action<Object>> callbacks, final List<Action<Void>> closeActions) {
+        final List<ServerSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sockets.add((ServerSocket) Proxy.newProxyInstance(ServerSocket.class.getClassLoader(), new Class<?>[] { ServerSocket.class }, new InvocationHandler() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("send") && args.length == 4) {
+                        callbacks.add((Action<Object>) args[2]);
+                        callbacks.add((Action<Object>) args[3]);
+                    } else if (method.getName().equals("onclose")) {
+                        closeActions.add((Action<Void>) args[0]);
+                    }
+                    return null;
+                }
+            }));
+        }
+        return new Sentence(new Action<Action<ServerSocket>>() {
+            @Override
+            public void on(Action<ServerSocket> action) {
+                for (ServerSocket socket : sockets) {
+                    action.on(socket);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BatchTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void frame() throws Exception {
+        TestTransport transport = new TestTransport("http://localhost/vibe?transport=test&batch=true");
+        ServerSocket socket = socket(transport);
+        socket.send("first").send(new Batch().add("a", 1).add("b", 2).add("c", 3)).send("last");
+        List<String> sent = transport.sent();
+        assertThat(sent.size(), is(3));
+        int first = Integer.parseInt((String) event(sent.get(0)).get("id"));
+        List<Object> frame = mapper.readValue(sent.get(1), new TypeReference<List<Object>>() {});
+        // The first element is the id of the first event and the rest are
+        // events without ids
+        assertThat(frame.size(), is(4));
+        assertThat((Integer) frame.get(0), is(first + 1));
+        for (int i = 1; i < frame.size(); i++) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> event = (Map<String, Object>) frame.get(i);
+            assertThat(event.containsKey("id"), is(false));
+            assertThat((Integer) event.get("data"), is(i));
+        }
+        assertThat(Integer.parseInt((String) event(sent.get(2)).get("id")), is(first + 4));
+    }
+
+    @Test
+    public void notAsked() throws Exception {
+        TestTransport transport = new TestTransport();
+        ServerSocket socket = socket(transport);
+        socket.send(new Batch().add("a", 1).add("b", 2));
+        List<String> sent = transport.sent();
+        // A client which hasn't asked gets plain events
+        assertThat(sent.size(), is(2));
+        Map<String, Object> a = event(sent.get(0));
+        Map<String, Object> b = event(sent.get(1));
+        assertThat((String) a.get("type"), is("a"));
+        assertThat((String) b.get("type"), is("b"));
+        assertThat(Integer.parseInt((String) b.get("id")), is(Integer.parseInt((String) a.get("id")) + 1));
+    }
+
+    @Test
+    public void handshake() {
+        final List<String> handshakes = new ArrayList<>();
+        TestTransport transport = new TestTransport("http://localhost/vibe?transport=test&batch=true") {
+            @Override
+            protected void doSend(String data) {
+                if (data.startsWith("?")) {
+                    handshakes.add(data);
+                }
+                super.doSend(data);
+            }
+        };
+        socket(transport);
+        assertThat(handshakes.get(0).contains("batch=true"), is(true));
+    }
+
+    private Map<String, Object> event(String text) throws Exception {
+        return mapper.readValue(text, new TypeReference<Map<String, Object>>() {});
+    }
+
+    private static ServerSocket socket(TestTransport transport) {
+        final List<ServerSocket> sockets = new ArrayList<>();
+        DefaultServer server = new DefaultServer();
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                sockets.add(socket);
+            }
+        });
+        server.on(transport);
+        return sockets.get(0);
+    }
+
+}
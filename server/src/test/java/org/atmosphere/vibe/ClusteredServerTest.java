@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+public class ClusteredServerTest {
+
+    @Test
+    public void local() {
+        final ClusteredServer server = new ClusteredServer();
+        final List<Map<String, Object>> published = new ArrayList<>();
+        server.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                published.add(message);
+                // A bus echoing messages to the publisher
+                server.messageAction().on(message);
+            }
+        });
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.tag("room");
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        server.all().send("a");
+        server.byTag(TagQuery.tag("room")).send("b");
+        // Executed right away and once regardless of the echo
+        assertThat(transport.sent().size(), is(2));
+        assertThat(published.size(), is(2));
+
+        // A message from another node is executed
+        ClusteredServer other = new ClusteredServer();
+        other.onpublish(server.messageAction());
+        other.all().send("c");
+        assertThat(transport.sent().size(), is(3));
+    }
+
+}
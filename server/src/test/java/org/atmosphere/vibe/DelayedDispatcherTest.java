@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class DelayedDispatcherTest {
+
+    @Test
+    public void rejection() throws Exception {
+        final AtomicBoolean rejecting = new AtomicBoolean(true);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        DelayedDispatcher dispatcher = new DelayedDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting.get()) {
+                    rejected.countDown();
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        });
+        final List<Integer> ran = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(1);
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(dispatcher.isPending(), is(true));
+        assertThat(rejected.await(3, TimeUnit.SECONDS), is(true));
+        // The rejected task doesn't hold back later ones
+        rejecting.set(false);
+        dispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(2);
+                done.countDown();
+            }
+        }, 0);
+        assertThat(done.await(3, TimeUnit.SECONDS), is(true));
+        assertThat(ran.size(), is(1));
+        assertThat(ran.get(0), is(2));
+        // The count drops right after the task returns
+        long deadline = System.currentTimeMillis() + 3000;
+        while (dispatcher.isPending() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(dispatcher.isPending(), is(false));
+    }
+
+}
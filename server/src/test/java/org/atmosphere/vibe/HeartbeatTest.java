@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.VoidAction;
+import org.junit.Test;
+
+public class HeartbeatTest {
+
+    @Test
+    public void throwingHandler() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(2);
+        DefaultServer server = new DefaultServer();
+        server.setHeartbeat(100);
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.onerror(new Action<Throwable>() {
+                    @Override
+                    public void on(Throwable throwable) {
+                        throw new IllegalStateException();
+                    }
+                });
+            }
+        });
+        server.on(transport(closed));
+        Thread.sleep(300);
+        // Heartbeat checks go on after a handler has thrown
+        server.on(transport(closed));
+        assertThat(closed.await(3, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void pong() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        DefaultServer server = new DefaultServer();
+        server.setHeartbeat(100);
+        TestTransport transport = transport(closed);
+        server.on(transport);
+        // Pongs keep the socket alive without heartbeat events
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(40);
+            transport.pong();
+        }
+        assertThat(closed.getCount(), is(1L));
+        assertThat(closed.await(3, TimeUnit.SECONDS), is(true));
+    }
+
+    private static TestTransport transport(final CountDownLatch closed) {
+        TestTransport transport = new TestTransport();
+        transport.onclose(new VoidAction() {
+            @Override
+            public void on() {
+                closed.countDown();
+            }
+        });
+        return transport;
+    }
+}
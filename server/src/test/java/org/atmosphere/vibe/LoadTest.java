@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
+
+import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.bridge.atmosphere2.VibeAtmosphereServlet;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+import org.atmosphere.vibe.transport.websocket.WebSocketTransportServer;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures handshake time, throughput and latency of each transport with
+ * {@link VibeClient} over the same embedded Jetty setup with
+ * {@link ProtocolTest}. As it takes a while, it runs only if
+ * {@code vibe.loadtest} system property is true.
+ * <ul>
+ * <li>{@code vibe.loadtest.concurrency}: the number of clients per transport.
+ * Defaults to 50.</li>
+ * <li>{@code vibe.loadtest.messages}: the number of echo round trips per
+ * client. Defaults to 200.</li>
+ * <li>{@code vibe.loadtest.transports}: transports to test. Defaults to
+ * {@code websocket,httpstream,httplongpoll}.</li>
+ * </ul>
+ * For example, {@code mvn test -pl server -Dtest=LoadTest -Dvibe.loadtest=true}
+ * logs a row per transport with the median handshake time, the throughput
+ * and the percentiles of echo round trips.
+ */
+public class LoadTest {
+
+    private final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+    @Test
+    public void load() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("vibe.loadtest"));
+        int concurrency = Integer.getInteger("vibe.loadtest.concurrency", 50);
+        int messages = Integer.getInteger("vibe.loadtest.messages", 200);
+        String[] transports = System.getProperty("vibe.loadtest.transports", "websocket,httpstream,httplongpoll").split(",");
+
+        DefaultServer server = new DefaultServer();
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(final ServerSocket socket) {
+                socket.on("echo", new Action<Object>() {
+                    @Override
+                    public void on(Object data) {
+                        socket.send("echo", data);
+                    }
+                });
+            }
+        });
+        final HttpTransportServer httpTransportServer = new HttpTransportServer().ontransport(server);
+        final WebSocketTransportServer wsTransportServer = new WebSocketTransportServer().ontransport(server);
+
+        org.eclipse.jetty.server.Server jetty = new org.eclipse.jetty.server.Server();
+        ServerConnector connector = new ServerConnector(jetty);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        jetty.addConnector(connector);
+        ServletContextHandler handler = new ServletContextHandler();
+        handler.addEventListener(new ServletContextListener() {
+            @Override
+            public void contextInitialized(ServletContextEvent event) {
+                ServletContext context = event.getServletContext();
+                Servlet servlet = new VibeAtmosphereServlet().onhttp(httpTransportServer).onwebsocket(wsTransportServer);
+                ServletRegistration.Dynamic reg = context.addServlet(VibeAtmosphereServlet.class.getName(), servlet);
+                reg.setAsyncSupported(true);
+                reg.setInitParameter(ApplicationConfig.DISABLE_ATMOSPHEREINTERCEPTOR, Boolean.TRUE.toString());
+                reg.addMapping("/vibe");
+            }
+
+            @Override
+            public void contextDestroyed(ServletContextEvent sce) {}
+        });
+        jetty.setHandler(handler);
+        jetty.start();
+        try {
+            String uri = "http://127.0.0.1:" + connector.getLocalPort() + "/vibe";
+            log.info(String.format("%-14s %8s %12s %10s %10s %10s %10s", "transport", "clients", "handshake", "msg/s", "p50", "p99", "max"));
+            for (String transport : transports) {
+                run(transport, uri, concurrency, messages);
+            }
+        } finally {
+            jetty.stop();
+        }
+    }
+
+    private void run(String transport, String uri, int concurrency, final int messages) throws Exception {
+        final VibeClient[] clients = new VibeClient[concurrency];
+        final long[] handshakes = new long[concurrency];
+        // Latencies are recorded into preallocated arrays not to measure
+        // allocation of the harness itself
+        final long[][] latencies = new long[concurrency][messages];
+        final CountDownLatch opened = new CountDownLatch(concurrency);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        final CountDownLatch closed = new CountDownLatch(concurrency);
+        final AtomicInteger errors = new AtomicInteger();
+
+        for (int i = 0; i < concurrency; i++) {
+            final int index = i;
+            final long start = System.nanoTime();
+            final VibeClient client = VibeClient.create(transport, uri);
+            clients[i] = client;
+            client.on("open", new Action<Object>() {
+                @Override
+                public void on(Object handshake) {
+                    handshakes[index] = System.nanoTime() - start;
+                    opened.countDown();
+                }
+            })
+            .on("echo", new Action<Object>() {
+                int count;
+
+                @Override
+                public void on(Object data) {
+                    latencies[index][count] = System.nanoTime() - ((Number) data).longValue();
+                    if (++count == messages) {
+                        done.countDown();
+                    } else {
+                        send(client, System.nanoTime(), errors);
+                    }
+                }
+            })
+            .on("error", new Action<Object>() {
+                @Override
+                public void on(Object error) {
+                    errors.incrementAndGet();
+                }
+            })
+            .on("close", new Action<Object>() {
+                @Override
+                public void on(Object data) {
+                    closed.countDown();
+                }
+            });
+            client.open();
+        }
+        if (!opened.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(transport + ": " + opened.getCount() + " clients failed to open");
+        }
+
+        // Each client keeps one echo in flight so that throughput is bounded
+        // by the round trip of the transport
+        long start = System.nanoTime();
+        for (VibeClient client : clients) {
+            send(client, System.nanoTime(), errors);
+        }
+        if (!done.await(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(transport + ": " + done.getCount() + " clients failed to finish");
+        }
+        long elapsed = System.nanoTime() - start;
+        for (VibeClient client : clients) {
+            client.close();
+        }
+        closed.await(30, TimeUnit.SECONDS);
+
+        long[] all = new long[concurrency * messages];
+        for (int i = 0; i < concurrency; i++) {
+            System.arraycopy(latencies[i], 0, all, i * messages, messages);
+        }
+        Arrays.sort(all);
+        Arrays.sort(handshakes);
+        log.info(String.format("%-14s %8d %10.2fms %10.0f %8.2fms %8.2fms %8.2fms%s",
+            transport, concurrency, millis(handshakes[concurrency / 2]),
+            all.length / (elapsed / 1e9),
+            millis(all[all.length / 2]), millis(all[(int) (all.length * 0.99)]), millis(all[all.length - 1]),
+            errors.get() > 0 ? " (" + errors.get() + " errors)" : ""));
+    }
+
+    private static void send(VibeClient client, long timestamp, AtomicInteger errors) {
+        try {
+            client.send("echo", timestamp);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+}
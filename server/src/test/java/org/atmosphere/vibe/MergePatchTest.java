@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MergePatchTest {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void diff() throws IOException {
+        assertThat(diff("{\"a\":1,\"b\":{\"c\":2,\"d\":3},\"e\":[1,2]}", "{\"a\":1,\"b\":{\"c\":4,\"d\":3},\"e\":[1]}"),
+                is("{\"b\":{\"c\":4},\"e\":[1]}"));
+        assertThat(diff("{\"a\":1,\"b\":2}", "{\"b\":2}"), is("{\"a\":null}"));
+        assertThat(diff("{\"a\":{\"b\":1}}", "{\"a\":{\"b\":1}}"), is("{}"));
+        assertThat(diff("{\"a\":1}", "{\"a\":{\"b\":2}}"), is("{\"a\":{\"b\":2}}"));
+    }
+
+    @Test
+    public void inexpressible() throws IOException {
+        assertThat(MergePatch.diff(mapper.readTree("[1]"), mapper.readTree("[2]")), nullValue());
+        assertThat(MergePatch.diff(mapper.readTree("{\"a\":1}"), mapper.readTree("{\"a\":null}")), nullValue());
+        assertThat(MergePatch.diff(mapper.readTree("{\"a\":1}"), mapper.readTree("{\"a\":{\"b\":null}}")), nullValue());
+    }
+
+    private String diff(String source, String target) throws IOException {
+        return mapper.writeValueAsString(MergePatch.diff(mapper.readTree(source), mapper.readTree(target)));
+    }
+
+}
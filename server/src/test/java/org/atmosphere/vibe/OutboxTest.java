@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void forward() throws Exception {
+        File directory = folder.newFolder();
+        Outbox outbox = new Outbox(directory);
+        outbox.setSegmentSize(128);
+        for (int i = 0; i < 5; i++) {
+            outbox.append("user:42", "message", i);
+        }
+        outbox.append("user:43", "message", "x");
+        List<Object> sent = new ArrayList<>();
+        outbox.forward("user:42", socket(sent));
+        assertThat(sent, is((Object) Arrays.<Object> asList(0, 1, 2, 3, 4)));
+        outbox.close();
+        assertThat(directory.list().length > 1, is(true));
+
+        // Forwarded events are acknowledged across restart
+        outbox = new Outbox(directory);
+        sent.clear();
+        outbox.forward("user:42", socket(sent));
+        assertThat(sent.size(), is(0));
+        outbox.forward("user:43", socket(sent));
+        assertThat(sent, is((Object) Arrays.<Object> asList("x")));
+        outbox.close();
+    }
+
+    @Test
+    public void expire() throws Exception {
+        File directory = folder.newFolder();
+        Outbox outbox = new Outbox(directory);
+        outbox.setSegmentSize(128);
+        outbox.setTimeToLive(50);
+        outbox.append("user:42", "message", "old");
+        outbox.append("user:42", "message", "old");
+        Thread.sleep(100);
+        for (int i = 0; i < 5; i++) {
+            outbox.append("user:43", "message", i);
+        }
+        List<Object> sent = new ArrayList<>();
+        outbox.forward("user:42", socket(sent));
+        assertThat(sent.size(), is(0));
+        assertThat(new File(directory, String.format("%010d.log", 0)).exists(), is(false));
+        outbox.close();
+    }
+
+    @Test
+    public void closeWhileForwarding() throws Exception {
+        File directory = folder.newFolder();
+        Outbox outbox = new Outbox(directory);
+        for (int i = 0; i < 5; i++) {
+            outbox.append("user:42", "message", i);
+        }
+        final List<Object> sent = new ArrayList<>();
+        final List<Action<Void>> closeActions = new ArrayList<>();
+        // Closes on the third event
+        ServerSocket socket = (ServerSocket) Proxy.newProxyInstance(ServerSocket.class.getClassLoader(), new Class<?>[] { ServerSocket.class }, new InvocationHandler() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("onclose")) {
+                    closeActions.add((Action<Void>) args[0]);
+                } else if (method.getName().equals("send")) {
+                    sent.add(args[1]);
+                    if (sent.size() == 3) {
+                        closeActions.get(0).on(null);
+                    }
+                }
+                return null;
+            }
+        });
+        outbox.forward("user:42", socket);
+        assertThat(sent, is((Object) Arrays.<Object> asList(0, 1, 2)));
+        outbox.close();
+
+        // The event sent while closing and the rest are kept across restart
+        outbox = new Outbox(directory);
+        sent.clear();
+        outbox.forward("user:42", socket(sent));
+        assertThat(sent, is((Object) Arrays.<Object> asList(2, 3, 4)));
+        sent.clear();
+        outbox.forward("user:42", socket(sent));
+        assertThat(sent.size(), is(0));
+        outbox.close();
+    }
+
+    @Test
+    public void tagWithoutEvents() throws Exception {
+        final Outbox outbox = new Outbox(folder.newFolder());
+        outbox.append("user:42", "message", "hi");
+        final List<Object> sent = new ArrayList<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                outbox.forward("user:43", socket(sent));
+            }
+        });
+        // A tag without events doesn't wait for the lock
+        synchronized (outbox) {
+            thread.start();
+            thread.join(1000);
+            assertThat(thread.isAlive(), is(false));
+        }
+        assertThat(sent.size(), is(0));
+        outbox.close();
+    }
+
+    @Test
+    public void tagWhileAppending() throws Exception {
+        final List<ServerSocket> sockets = new ArrayList<>();
+        // The socket is tagged after the server found no recipient but
+        // before the event is appended
+        Outbox outbox = new Outbox(folder.newFolder()) {
+            @Override
+            synchronized void append(String tag, String type, Object data) {
+                sockets.get(0).tag(tag);
+                super.append(tag, type, data);
+            }
+        };
+        DefaultServer server = new DefaultServer();
+        server.setOutbox(outbox);
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                sockets.add(socket);
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        server.byTag("user:42").send("message", "hi");
+        assertThat(transport.sent().size(), is(1));
+        assertThat(transport.sent().get(0).contains("\"hi\""), is(true));
+        outbox.close();
+    }
+
+    private static ServerSocket socket(final List<Object> sent) {
+        return (ServerSocket) Proxy.newProxyInstance(ServerSocket.class.getClassLoader(), new Class<?>[] { ServerSocket.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("send")) {
+                    sent.add(args[1]);
+                }
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.atmosphere.vibe.internal.SharedScheduler;
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+public class PresenceTest {
+
+    @Test
+    public void count() throws Exception {
+        final ClusteredServer a = new ClusteredServer();
+        final ClusteredServer b = new ClusteredServer();
+        final AtomicBoolean connected = new AtomicBoolean(true);
+        for (ClusteredServer server : new ClusteredServer[] { a, b }) {
+            server.setPresenceInterval(20);
+            server.setPresenceTimeout(500);
+        }
+        link(a, b, connected);
+        link(b, a, connected);
+        a.on(new TestTransport());
+        a.on(new TestTransport());
+        TestTransport transport = new TestTransport();
+        b.on(transport);
+        a.all(new TagAction("room"));
+        b.all(new TagAction("room"));
+        await(a, 3, 3);
+        await(b, 3, 3);
+
+        transport.close();
+        await(a, 2, 2);
+
+        // Counts of a node which has left are discarded
+        connected.set(false);
+        b.on(new TestTransport());
+        await(a, 2, 2);
+        await(b, 1, 0);
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void prune() throws Exception {
+        final ClusteredServer a = new ClusteredServer();
+        final ClusteredServer b = new ClusteredServer();
+        final AtomicBoolean connected = new AtomicBoolean(true);
+        for (ClusteredServer server : new ClusteredServer[] { a, b }) {
+            server.setPresenceInterval(20);
+        }
+        link(a, b, connected);
+        link(b, a, connected);
+        a.on(new TestTransport());
+        a.all(new TagAction("room"));
+        await(b, 1, 1);
+
+        a.all(new UntagAction("room"));
+        await(b, 1, 0);
+        assertThat(a.tagIndex.counter("room") == null, is(true));
+
+        // A counter created again outweighs the removed one
+        a.all(new TagAction("room"));
+        await(b, 1, 1);
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void close() throws Exception {
+        ClusteredServer server = new ClusteredServer();
+        server.setPresenceInterval(20);
+        final AtomicInteger published = new AtomicInteger();
+        server.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                published.incrementAndGet();
+            }
+        });
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return published.get() > 0;
+            }
+        });
+        server.close();
+        // A publish may be running at the moment
+        Thread.sleep(50);
+        int count = published.get();
+        Thread.sleep(200);
+        assertThat(published.get(), is(count));
+    }
+
+    @Test
+    public void blockingPublish() throws Exception {
+        ClusteredServer server = new ClusteredServer();
+        server.setPresenceInterval(20);
+        final CountDownLatch publishing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                publishing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            assertThat(publishing.await(5, TimeUnit.SECONDS), is(true));
+            // Other timed tasks keep running while a publish blocks
+            final CountDownLatch ticked = new CountDownLatch(1);
+            SharedScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ticked.countDown();
+                }
+            }, 10);
+            assertThat(ticked.await(1, TimeUnit.SECONDS), is(true));
+        } finally {
+            release.countDown();
+            server.close();
+        }
+    }
+
+    private static void link(ClusteredServer from, final ClusteredServer to, final AtomicBoolean connected) {
+        from.onpublish(new Action<Map<String, Object>>() {
+            @Override
+            public void on(Map<String, Object> message) {
+                if (connected.get()) {
+                    to.messageAction().on(message);
+                }
+            }
+        });
+        // As a bus delivers a message to its sender as well
+        from.onpublish(from.messageAction());
+    }
+
+    private static void await(final Server server, final long count, final long tagCount) throws Exception {
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return server.count() == count && server.count("room") == tagCount;
+            }
+        });
+        assertThat(server.count(), is(count));
+        assertThat(server.count("room"), is(tagCount));
+    }
+
+    private static void awaitTrue(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class TagAction implements Action<ServerSocket>, Serializable {
+        private final String tag;
+
+        TagAction(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.tag(tag);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class UntagAction implements Action<ServerSocket>, Serializable {
+        private final String tag;
+
+        UntagAction(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public void on(ServerSocket socket) {
+            socket.untag(tag);
+        }
+    }
+
+}
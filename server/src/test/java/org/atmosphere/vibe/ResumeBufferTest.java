@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.transport.Priority;
+import org.atmosphere.vibe.transport.PriorityTransport;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+import org.junit.Test;
+
+public class ResumeBufferTest {
+
+    @Test
+    public void since() {
+        ResumeBuffer buffer = new ResumeBuffer(3, 1024, 60000);
+        write(buffer, 1, "a");
+        write(buffer, 2, "b");
+        assertThat(buffer.since(0), is(Arrays.asList("a", "b")));
+        assertThat(buffer.since(1), is(Arrays.asList("b")));
+        assertThat(buffer.since(2), is(Collections.<String> emptyList()));
+    }
+
+    @Test
+    public void size() {
+        ResumeBuffer buffer = new ResumeBuffer(2, 1024, 60000);
+        write(buffer, 1, "a");
+        write(buffer, 2, "b");
+        write(buffer, 3, "c");
+        assertThat(buffer.since(0), nullValue());
+        assertThat(buffer.since(1), is(Arrays.asList("b", "c")));
+    }
+
+    @Test
+    public void grow() {
+        ResumeBuffer buffer = new ResumeBuffer(20, 1024, 60000);
+        List<String> texts = new ArrayList<>();
+        for (int i = 1; i <= 21; i++) {
+            write(buffer, i, "" + i);
+            texts.add("" + i);
+        }
+        assertThat(buffer.since(0), nullValue());
+        assertThat(buffer.since(1), is(texts.subList(1, 21)));
+    }
+
+    @Test
+    public void length() {
+        ResumeBuffer buffer = new ResumeBuffer(10, 4, 60000);
+        write(buffer, 1, "aa");
+        write(buffer, 2, "bb");
+        write(buffer, 3, "cc");
+        assertThat(buffer.since(0), nullValue());
+        assertThat(buffer.since(1), is(Arrays.asList("bb", "cc")));
+    }
+
+    @Test
+    public void age() throws Exception {
+        ResumeBuffer buffer = new ResumeBuffer(10, 1024, 50);
+        write(buffer, 1, "a");
+        Thread.sleep(100);
+        assertThat(buffer.since(0), nullValue());
+        assertThat(buffer.since(1), is(Collections.<String> emptyList()));
+    }
+
+    @Test
+    public void reordered() {
+        ResumeBuffer buffer = new ResumeBuffer(10, 1024, 60000);
+        String a = "a";
+        String b = "b";
+        String c = "c";
+        buffer.add(1, a);
+        buffer.add(2, b);
+        buffer.add(3, c);
+        // b overtakes a and the connection is lost before a is written
+        buffer.written(b);
+        assertThat(buffer.since(2), is(Arrays.asList("a", "c")));
+        // Replayed through the new connection
+        buffer.written(a);
+        buffer.written(c);
+        buffer.written(b);
+        assertThat(buffer.since(1), is(Arrays.asList("b", "c")));
+        assertThat(buffer.since(3), is(Arrays.asList("b")));
+    }
+
+    @Test
+    public void resumeAfterReordering() {
+        final List<ServerSocket> sockets = new ArrayList<>();
+        DefaultServer server = new DefaultServer();
+        server.setResumeBufferSize(10);
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                sockets.add(socket);
+            }
+        });
+        QueueTransport first = new QueueTransport("http://localhost/vibe?transport=test");
+        server.on(first);
+        String id = HttpTransportServer.parseQuery(first.write("?")).get("id");
+        sockets.get(0).send("a", null, Priority.BULK).send("b", null);
+        // b overtakes a and the connection is lost before a is written
+        String b = first.write("\"type\":\"b\"");
+        first.close();
+        String lastEventId = b.substring(b.indexOf(":\"") + 2, b.indexOf("\","));
+        QueueTransport second = new QueueTransport("http://localhost/vibe?transport=test&resume=" + id + "&lastEventId=" + lastEventId);
+        server.on(second);
+        assertThat(second.write("?").contains("resumed=true"), is(true));
+        assertThat(second.write("\"type\":\"a\"") != null, is(true));
+    }
+
+    // Writes queued messages only when asked to
+    private static class QueueTransport extends TestTransport implements PriorityTransport {
+        private final List<String> queue = new ArrayList<>();
+
+        QueueTransport(String uri) {
+            super(uri);
+        }
+
+        // Writes the first queued message containing the given string
+        String write(String part) {
+            for (String text : queue) {
+                if (text.contains(part)) {
+                    queue.remove(text);
+                    writeActions.fire(text);
+                    return text;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void doSend(String data) {
+            queue.add(data);
+        }
+    }
+
+    private static void write(ResumeBuffer buffer, int id, String text) {
+        buffer.add(id, text);
+        buffer.written(text);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void order() throws Exception {
+        ExecutorService executor = DispatchExecutors.newFixedExecutor(4);
+        final int tasks = 1000;
+        final CountDownLatch latch = new CountDownLatch(tasks * 2);
+        final List<Integer> first = new ArrayList<>();
+        final List<Integer> second = new ArrayList<>();
+        SerialExecutor firstMailbox = new SerialExecutor(executor);
+        SerialExecutor secondMailbox = new SerialExecutor(executor);
+        for (int i = 0; i < tasks; i++) {
+            final int n = i;
+            firstMailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    first.add(n);
+                    latch.countDown();
+                }
+            });
+            secondMailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    second.add(n);
+                    latch.countDown();
+                }
+            });
+        }
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        for (int i = 0; i < tasks; i++) {
+            assertThat(first.get(i), is(i));
+            assertThat(second.get(i), is(i));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void failure() throws Exception {
+        ExecutorService executor = DispatchExecutors.newFixedExecutor(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        SerialExecutor mailbox = new SerialExecutor(executor);
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+        executor.shutdown();
+    }
+
+    @Test
+    public void rejection() {
+        final AtomicBoolean rejecting = new AtomicBoolean(true);
+        SerialExecutor mailbox = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting.get()) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        });
+        final List<Integer> ran = new ArrayList<>();
+        try {
+            mailbox.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(1);
+                }
+            });
+            throw new AssertionError();
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        rejecting.set(false);
+        mailbox.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(2);
+            }
+        });
+        assertThat(ran.size(), is(2));
+        assertThat(ran.get(0), is(1));
+        assertThat(ran.get(1), is(2));
+    }
+
+}
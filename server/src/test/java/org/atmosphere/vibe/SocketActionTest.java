@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.atmosphere.vibe.ServerSocket.Reply;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.VoidAction;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SocketActionTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void order() {
+        final List<String> calls = new ArrayList<>();
+        DefaultServer server = new DefaultServer();
+        server.on("chat", new SocketAction<String>() {
+            @Override
+            public void on(ServerSocket socket, String data) {
+                calls.add("server " + data);
+            }
+        });
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.on("chat", new Action<String>() {
+                    @Override
+                    public void on(String data) {
+                        calls.add("socket " + data);
+                    }
+                });
+            }
+        });
+        server.on("chat", new SocketAction<String>() {
+            @Override
+            public void on(ServerSocket socket, String data) {
+                calls.add("server2 " + data);
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        transport.receive("{\"id\":\"1\",\"type\":\"chat\",\"data\":\"hi\",\"reply\":false}");
+        // The server's actions run in order they were added before the
+        // socket's
+        assertThat(calls, is((Object) Arrays.asList("server hi", "server2 hi", "socket hi")));
+    }
+
+    @Test
+    public void reply() throws Exception {
+        DefaultServer server = new DefaultServer();
+        server.on("echo", new SocketAction<Reply<Object>>() {
+            @Override
+            public void on(ServerSocket socket, Reply<Object> reply) {
+                reply.resolve(reply.data());
+                // Only the first one counts
+                reply.reject("ignored");
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        transport.receive("{\"id\":\"7\",\"type\":\"echo\",\"data\":\"hi\",\"reply\":true}");
+        assertThat(transport.sent().size(), is(1));
+        Map<String, Object> event = event(transport.sent().get(0));
+        assertThat((String) event.get("type"), is("reply"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) event.get("data");
+        assertThat((String) result.get("id"), is("7"));
+        assertThat((String) result.get("data"), is("hi"));
+        assertThat((Boolean) result.get("exception"), is(false));
+    }
+
+    @Test
+    public void protocolEvents() throws Exception {
+        final List<String> calls = new ArrayList<>();
+        final List<ServerSocket> sockets = new ArrayList<>();
+        DefaultServer server = new DefaultServer();
+        server.on("heartbeat", new SocketAction<Object>() {
+            @Override
+            public void on(ServerSocket socket, Object data) {
+                calls.add("heartbeat");
+            }
+        });
+        server.on("close", new SocketAction<Object>() {
+            @Override
+            public void on(ServerSocket socket, Object data) {
+                calls.add("server close");
+            }
+        });
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                sockets.add(socket);
+                socket.on("close", new VoidAction() {
+                    @Override
+                    public void on() {
+                        calls.add("socket close");
+                    }
+                });
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        // The built-in heartbeat action answers before the added one runs
+        transport.receive("{\"id\":\"1\",\"type\":\"heartbeat\",\"data\":null,\"reply\":false}");
+        assertThat((String) event(transport.sent().get(0)).get("type"), is("heartbeat"));
+        assertThat(calls, is((Object) Arrays.asList("heartbeat")));
+        // The built-in reply action resolves a callback of an event sent
+        final List<Object> resolved = new ArrayList<>();
+        sockets.get(0).send("question", null, new Action<Object>() {
+            @Override
+            public void on(Object data) {
+                resolved.add(data);
+            }
+        });
+        String id = (String) event(transport.sent().get(1)).get("id");
+        transport.receive("{\"id\":\"2\",\"type\":\"reply\",\"data\":{\"id\":\"" + id + "\",\"data\":42,\"exception\":false},\"reply\":false}");
+        assertThat(resolved, is((Object) Arrays.<Object> asList(42)));
+        transport.close();
+        assertThat(calls, is((Object) Arrays.asList("heartbeat", "server close", "socket close")));
+    }
+
+    @Test
+    public void closeDuringHandshake() {
+        DefaultServer server = new DefaultServer();
+        TestTransport transport = new TestTransport() {
+            @Override
+            protected void doSend(String data) {
+                // The handshake
+                if (data.startsWith("?")) {
+                    close();
+                }
+            }
+        };
+        server.on(transport);
+        final List<ServerSocket> sockets = new ArrayList<>();
+        server.all(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                sockets.add(socket);
+            }
+        });
+        assertThat(sockets.isEmpty(), is(true));
+    }
+
+    private Map<String, Object> event(String text) throws Exception {
+        return mapper.readValue(text, new TypeReference<Map<String, Object>>() {});
+    }
+
+}
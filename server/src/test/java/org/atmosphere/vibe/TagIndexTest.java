@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TagIndexTest {
+
+    @Test
+    public void bitmap() {
+        Bitmap a = new Bitmap();
+        Bitmap b = new Bitmap();
+        for (int i = 0; i < 10000; i += 3) {
+            a.set(i);
+        }
+        for (int i = 0; i < 10000; i += 5) {
+            b.set(i);
+        }
+        assertThat(indexes(a.copy().and(b)).size(), is(667));
+        assertThat(indexes(a.copy().or(b)).size(), is(3334 + 2000 - 667));
+        assertThat(indexes(a.copy().andNot(b)).size(), is(3334 - 667));
+        a.clear(0);
+        assertThat(a.next(0), is(3));
+        assertThat(a.next(9999), is(9999));
+        assertThat(a.next(10000), is(-1));
+    }
+
+    @Test
+    public void evaluate() {
+        TagIndex index = new TagIndex();
+        int a = index.add(null);
+        int b = index.add(null);
+        int c = index.add(null);
+        index.tag(a, "room");
+        index.tag(b, "room");
+        index.tag(b, "muted");
+        index.tag(c, "lobby");
+        assertThat(indexes(index.evaluate(TagQuery.tag("room"))), is(Arrays.asList(a, b)));
+        assertThat(indexes(index.evaluate(TagQuery.allOf("room", "muted"))), is(Arrays.asList(b)));
+        assertThat(indexes(index.evaluate(TagQuery.anyOf("muted", "lobby"))), is(Arrays.asList(b, c)));
+        assertThat(indexes(index.evaluate(TagQuery.tag("room").andNot(TagQuery.tag("muted")))), is(Arrays.asList(a)));
+        assertThat(indexes(index.evaluate(TagQuery.tag("room").not())), is(Arrays.asList(c)));
+        index.remove(b, Arrays.asList("room", "muted"));
+        assertThat(indexes(index.evaluate(TagQuery.tag("room"))), is(Arrays.asList(a)));
+        assertThat(index.add(null), is(b));
+    }
+
+    @Test
+    public void removeEmptyTag() {
+        TagIndex index = new TagIndex();
+        int a = index.add(null);
+        int b = index.add(null);
+        index.tag(a, "room");
+        index.tag(b, "room");
+        index.tag(b, "muted");
+        index.remove(b, Arrays.asList("room", "muted"));
+        assertThat(index.tags(), is((Set<String>) new HashSet<>(Arrays.asList("room"))));
+        index.untag(a, "room");
+        assertThat(index.tags().isEmpty(), is(true));
+        assertThat(indexes(index.evaluate(TagQuery.tag("room"))).isEmpty(), is(true));
+        index.tag(a, "room");
+        assertThat(indexes(index.evaluate(TagQuery.tag("room"))), is(Arrays.asList(a)));
+    }
+
+    @Test
+    public void concurrentTags() throws Exception {
+        final TagIndex index = new TagIndex();
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final String own = "own:" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            int ordinal = index.add(null);
+                            index.tag(ordinal, "shared");
+                            index.tag(ordinal, own);
+                            index.untag(ordinal, own);
+                            index.remove(ordinal, Arrays.asList("shared"));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        // Tags emptied and created again concurrently leave nothing behind
+        assertThat(index.tags().isEmpty(), is(true));
+        assertThat(index.counters().isEmpty(), is(true));
+        assertThat(index.counter().value(), is(0L));
+        int a = index.add(null);
+        index.tag(a, "shared");
+        assertThat(index.counter("shared").value(), is(1L));
+    }
+
+    private static List<Integer> indexes(Bitmap bitmap) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = bitmap.next(0); i >= 0; i = bitmap.next(i + 1)) {
+            list.add(i);
+        }
+        return list;
+    }
+
+}
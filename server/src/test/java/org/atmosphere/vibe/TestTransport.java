@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.atmosphere.vibe.transport.BaseServerTransport;
+
+/**
+ * In-memory transport for tests. It records text messages sent by the server
+ * except the handshake and lets tests feed received messages.
+ */
+public class TestTransport extends BaseServerTransport {
+    private final String uri;
+    private final List<String> sent = new ArrayList<>();
+
+    public TestTransport() {
+        this("http://localhost/vibe?transport=test");
+    }
+
+    public TestTransport(String uri) {
+        this.uri = uri;
+    }
+
+    @Override
+    public String uri() {
+        return uri;
+    }
+
+    /**
+     * Fires the given text as if the client had sent it.
+     */
+    public void receive(String text) {
+        textActions.fire(text);
+    }
+
+    /**
+     * Fires a protocol-level pong as if the client had answered a ping.
+     */
+    public void pong() {
+        pongActions.fire();
+    }
+
+    /**
+     * Returns a copy of the text messages sent so far.
+     */
+    public List<String> sent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    /**
+     * Waits until the given number of text messages have been sent and
+     * returns false if the timeout elapses first.
+     */
+    public boolean await(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (sent) {
+            while (sent.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                sent.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected void doSend(String data) {
+        if (!data.startsWith("?")) {
+            synchronized (sent) {
+                sent.add(data);
+                sent.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    protected void doSend(ByteBuffer data) {}
+
+    @Override
+    protected void doClose() {
+        closeActions.fire();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> clazz) {
+        return null;
+    }
+}
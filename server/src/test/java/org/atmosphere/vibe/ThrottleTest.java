@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.junit.Test;
+
+public class ThrottleTest {
+
+    @Test
+    public void type() {
+        assertThat(Throttle.type("{\"id\":\"1\",\"type\":\"chat\",\"data\":null}"), is("chat"));
+        assertThat(Throttle.type("{\"data\":{\"type\":\"inner\"}, \"type\" : \"chat\"}"), is("chat"));
+        assertThat(Throttle.type("{\"data\":[\"type\",{\"type\":1}],\"type\":\"chat\"}"), is("chat"));
+        assertThat(Throttle.type("{\"data\":\"\\\"type\\\":\",\"type\":\"chat\"}"), is("chat"));
+        assertThat(Throttle.type("{\"type\":\"a\\\"b\"}"), sameInstance(Throttle.MALFORMED));
+        assertThat(Throttle.type("{\"type\":\"heartbeat\",\"type\":\"chat\"}"), sameInstance(Throttle.MALFORMED));
+        assertThat(Throttle.type("{\"typ\\u0065\":\"chat\"}"), sameInstance(Throttle.MALFORMED));
+        assertThat(Throttle.type("{\"data\":1}"), nullValue());
+    }
+
+    @Test
+    public void drop() {
+        RateLimit limit = new RateLimit(1, 3);
+        Throttle throttle = new Throttle(limit);
+        for (int i = 0; i < 3; i++) {
+            assertThat(throttle.admit("{\"type\":\"chat\"}"), is(0L));
+        }
+        assertThat(throttle.admit("{\"type\":\"chat\"}"), is(Throttle.REJECT));
+        assertThat(throttle.admit("{\"type\":\"chat\"}"), is(Throttle.REJECT));
+        assertThat(limit.dropped(), is(2L));
+        assertThat(limit.throttledSockets(), is(1L));
+    }
+
+    @Test
+    public void heartbeatFlood() {
+        RateLimit limit = new RateLimit(1, 3);
+        Throttle throttle = new Throttle(limit);
+        String heartbeat = "{\"id\":\"1\",\"type\":\"heartbeat\",\"data\":\"xxxxxxxx\",\"reply\":false}";
+        for (int i = 0; i < 3; i++) {
+            assertThat(throttle.admit(heartbeat), is(0L));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(throttle.admit(heartbeat), is(Throttle.REJECT));
+        }
+        assertThat(limit.dropped(), is(100L));
+    }
+
+    @Test
+    public void eventLimit() {
+        RateLimit limit = new RateLimit(1000, 1000);
+        limit.setEventLimit("upload", 1, 1);
+        Throttle throttle = new Throttle(limit);
+        assertThat(throttle.admit("{\"type\":\"upload\"}"), is(0L));
+        assertThat(throttle.admit("{\"type\":\"upload\"}"), is(Throttle.REJECT));
+        assertThat(throttle.admit("{\"type\":\"chat\"}"), is(0L));
+    }
+
+    @Test
+    public void delayAndClose() {
+        RateLimit limit = new RateLimit(10, 1);
+        limit.setOverload(RateLimit.Overload.DELAY);
+        limit.setMaxDelay(250);
+        Throttle throttle = new Throttle(limit);
+        assertThat(throttle.admit("{}"), is(0L));
+        assertThat(throttle.admit("{}") > 0, is(true));
+        assertThat(throttle.admit("{}") > 0, is(true));
+        // The next slot is 300ms later
+        assertThat(throttle.admit("{}"), is(Throttle.REJECT));
+        assertThat(limit.delayed(), is(2L));
+
+        limit = new RateLimit(10, 1);
+        limit.setOverload(RateLimit.Overload.CLOSE);
+        throttle = new Throttle(limit);
+        throttle.admit("{}");
+        assertThat(throttle.admit("{}"), is(Throttle.REJECT));
+        assertThat(throttle.admit("{}"), is(Throttle.REJECT));
+        assertThat(limit.closed(), is(1L));
+    }
+
+    @Test
+    public void delayKeepsOrder() throws InterruptedException {
+        RateLimit limit = new RateLimit(1000, 1000);
+        limit.setEventLimit("slow", 10, 1);
+        limit.setOverload(RateLimit.Overload.DELAY);
+        DefaultServer server = new DefaultServer();
+        server.setRateLimit(limit);
+        final List<String> dispatched = new CopyOnWriteArrayList<>();
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                for (final String type : new String[] { "slow", "fast" }) {
+                    socket.on(type, new Action<Object>() {
+                        @Override
+                        public void on(Object data) {
+                            dispatched.add(type + data);
+                        }
+                    });
+                }
+            }
+        });
+        TestTransport transport = new TestTransport();
+        server.on(transport);
+        transport.receive("{\"id\":\"1\",\"type\":\"slow\",\"data\":1,\"reply\":false}");
+        transport.receive("{\"id\":\"2\",\"type\":\"slow\",\"data\":2,\"reply\":false}");
+        // Not limited by the event limit but shouldn't overtake the second
+        transport.receive("{\"id\":\"3\",\"type\":\"fast\",\"data\":3,\"reply\":false}");
+        long deadline = System.currentTimeMillis() + 3000;
+        while (dispatched.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(dispatched.toString(), is("[slow1, slow2, fast3]"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void limitInUse() {
+        RateLimit limit = new RateLimit(1, 1);
+        new DefaultServer().setRateLimit(limit);
+        limit.setEventLimit("chat", 1, 1);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+
+import org.junit.Test;
+
+public class TopicTrieTest {
+
+    @Test
+    public void match() {
+        TopicTrie trie = new TopicTrie();
+        ServerSocket exact = socket();
+        ServerSocket single = socket();
+        ServerSocket multi = socket();
+        ServerSocket all = socket();
+        trie.subscribe("quotes.NYSE.IBM", exact);
+        trie.subscribe("quotes.NYSE.*", single);
+        trie.subscribe("quotes.#", multi);
+        trie.subscribe("#", all);
+        assertThat(trie.match("quotes.NYSE.IBM").size(), is(4));
+        assertThat(trie.match("quotes.NYSE.ORCL").size(), is(3));
+        assertThat(trie.match("quotes.NYSE.ORCL"), hasItems(single, multi, all));
+        assertThat(trie.match("quotes").size(), is(2));
+        assertThat(trie.match("quotes.NASDAQ.MSFT"), hasItems(multi, all));
+        assertThat(trie.match("trades").size(), is(1));
+    }
+
+    @Test
+    public void unsubscribe() {
+        TopicTrie trie = new TopicTrie();
+        ServerSocket socket = socket();
+        trie.subscribe("quotes.*", socket);
+        trie.subscribe("quotes.#", socket);
+        assertThat(trie.match("quotes.IBM").size(), is(1));
+        trie.unsubscribe("quotes.*", socket);
+        assertThat(trie.match("quotes.IBM").size(), is(1));
+        trie.unsubscribe("quotes.#", socket);
+        assertThat(trie.match("quotes.IBM").size(), is(0));
+    }
+
+    @Test
+    public void cache() {
+        TopicTrie trie = new TopicTrie();
+        ServerSocket socket = socket();
+        trie.subscribe("quotes.#", socket);
+        Collection<ServerSocket> quotes = trie.match("quotes.IBM");
+        Collection<ServerSocket> trades = trie.match("trades.IBM");
+        trie.subscribe("trades.*", socket);
+        assertThat(trie.match("quotes.IBM"), sameInstance(quotes));
+        assertThat(trie.match("trades.IBM").size(), is(1));
+        trie.unsubscribe("quotes.#", socket);
+        assertThat(trie.match("quotes.IBM").size(), is(0));
+        assertThat(trades.size(), is(0));
+    }
+
+    @Test
+    public void wildcardChange() {
+        TopicTrie trie = new TopicTrie();
+        ServerSocket socket = socket();
+        Collection<ServerSocket> quotes = trie.match("quotes.IBM");
+        Collection<ServerSocket> trades = trie.match("trades.IBM");
+        // Only topics starting with the first segment are computed again
+        trie.subscribe("quotes.*.*", socket);
+        assertThat(trie.match("quotes.IBM"), not(sameInstance(quotes)));
+        assertThat(trie.match("trades.IBM"), sameInstance(trades));
+        // A pattern starting with a wildcard may match any topic
+        trie.subscribe("*.IBM", socket);
+        assertThat(trie.match("quotes.IBM").size(), is(1));
+        assertThat(trie.match("trades.IBM").size(), is(1));
+        trie.unsubscribe("*.IBM", socket);
+        assertThat(trie.match("trades.IBM").size(), is(0));
+        assertThat(trie.match("quotes.NYSE.IBM").size(), is(1));
+    }
+
+    private static ServerSocket socket() {
+        return (ServerSocket) Proxy.newProxyInstance(ServerSocket.class.getClassLoader(), new Class<?>[] { ServerSocket.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+                }
+            }
+        });
+    }
+
+}
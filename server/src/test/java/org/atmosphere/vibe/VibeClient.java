@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A client implementing the Vibe protocol in Java for {@code websocket},
+ * {@code httpstream} and {@code httplongpoll} transports. It's for load
+ * testing so that it handles events but not replies and binary events.
+ * <p>
+ * {@code open} event is fired with the handshake result and {@code close}
+ * event is fired when the transport is closed.
+ */
+public abstract class VibeClient {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Timer heartbeatTimer = new Timer("vibe-client-heartbeat", true);
+    private static WebSocketContainer container;
+    protected final String uri;
+    private Map<String, List<Action<Object>>> actionsMap = new ConcurrentHashMap<>();
+    private AtomicInteger eventId = new AtomicInteger();
+    private TimerTask heartbeatTask;
+
+    protected VibeClient(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Creates a client of the given transport connecting to the given URI
+     * like {@code http://localhost:8000/vibe}.
+     */
+    public static VibeClient create(String transport, String uri) {
+        switch (transport) {
+        case "websocket":
+            return new WebSocketClient(uri);
+        case "httpstream":
+            return new StreamClient(uri);
+        case "httplongpoll":
+            return new LongpollClient(uri);
+        default:
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+    /**
+     * Adds an action for the given event.
+     */
+    public VibeClient on(String event, Action<Object> action) {
+        List<Action<Object>> actions = actionsMap.get(event);
+        if (actions == null) {
+            actions = new CopyOnWriteArrayList<>();
+            actionsMap.put(event, actions);
+        }
+        actions.add(action);
+        return this;
+    }
+
+    /**
+     * Opens the transport. Events are fired in other threads.
+     */
+    public abstract void open() throws IOException;
+
+    /**
+     * Sends the given event.
+     */
+    public void send(String event, Object data) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("id", "" + eventId.incrementAndGet());
+        map.put("type", event);
+        map.put("data", data);
+        map.put("reply", false);
+        sendText(mapper.writeValueAsString(map));
+    }
+
+    /**
+     * Closes the transport.
+     */
+    public void close() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel();
+        }
+        doClose();
+    }
+
+    protected abstract void sendText(String text) throws IOException;
+
+    protected abstract void doClose();
+
+    protected void receive(String text) throws IOException {
+        if (text.startsWith("?")) {
+            Map<String, String> handshake = HttpTransportServer.parseQuery(uri + text);
+            int heartbeat = Integer.parseInt(handshake.get("heartbeat"));
+            int _heartbeat = Integer.parseInt(handshake.get("_heartbeat"));
+            heartbeatTask = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        send("heartbeat", null);
+                    } catch (IOException e) {
+                        cancel();
+                    }
+                }
+            };
+            heartbeatTimer.schedule(heartbeatTask, heartbeat - _heartbeat, heartbeat - _heartbeat);
+            fire("open", handshake);
+        } else if (text.startsWith("[")) {
+            // A batch of events following the id of the first one
+            List<Object> batch = mapper.readValue(text, new TypeReference<List<Object>>() {});
+            for (Object event : batch.subList(1, batch.size())) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> map = (Map<String, Object>) event;
+                dispatch(map);
+            }
+        } else {
+            Map<String, Object> event = mapper.readValue(text, new TypeReference<Map<String, Object>>() {});
+            dispatch(event);
+        }
+    }
+
+    private void dispatch(Map<String, Object> event) {
+        if (!"heartbeat".equals(event.get("type"))) {
+            fire((String) event.get("type"), event.get("data"));
+        }
+    }
+
+    protected void fire(String event, Object data) {
+        List<Action<Object>> actions = actionsMap.get(event);
+        if (actions != null) {
+            for (Action<Object> action : actions) {
+                action.on(data);
+            }
+        }
+    }
+
+    private static synchronized WebSocketContainer container() {
+        if (container == null) {
+            container = ContainerProvider.getWebSocketContainer();
+        }
+        return container;
+    }
+
+    private static class WebSocketClient extends VibeClient {
+        private Session session;
+
+        WebSocketClient(String uri) {
+            super(uri);
+        }
+
+        @Override
+        public void open() throws IOException {
+            try {
+                session = container().connectToServer(new Endpoint() {
+                    @Override
+                    public void onOpen(Session session, EndpointConfig config) {
+                        session.addMessageHandler(new MessageHandler.Whole<String>() {
+                            @Override
+                            public void onMessage(String message) {
+                                try {
+                                    receive(message);
+                                } catch (IOException e) {
+                                    fire("error", e);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onClose(Session session, javax.websocket.CloseReason reason) {
+                        fire("close", null);
+                    }
+                }, ClientEndpointConfig.Builder.create().build(), URI.create(uri.replaceFirst("^http", "ws") + "?transport=ws&batch=true"));
+            } catch (javax.websocket.DeploymentException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        protected synchronized void sendText(String text) throws IOException {
+            session.getBasicRemote().sendText(text);
+        }
+
+        @Override
+        protected void doClose() {
+            try {
+                session.close();
+            } catch (IOException e) {
+                fire("error", e);
+            }
+        }
+    }
+
+    /**
+     * Base class for HTTP transports.
+     */
+    private static abstract class HttpClient extends VibeClient implements Runnable {
+        private final String transport;
+        protected volatile String id;
+        protected volatile boolean closed;
+
+        HttpClient(String uri, String transport) {
+            super(uri);
+            this.transport = transport;
+        }
+
+        @Override
+        public void open() throws IOException {
+            Thread thread = new Thread(this, "vibe-client-" + transport);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        protected HttpURLConnection get(String when) throws IOException {
+            String query = "?transport=" + transport + "&when=" + when + (id != null ? "&id=" + URLEncoder.encode(id, "UTF-8") : "") + ("open".equals(when) ? "&batch=true" : "");
+            HttpURLConnection connection = (HttpURLConnection) new URL(uri + query).openConnection();
+            connection.setUseCaches(false);
+            return connection;
+        }
+
+        @Override
+        protected void sendText(String text) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(uri + "?transport=" + transport + "&id=" + URLEncoder.encode(id, "UTF-8")).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("content-type", "text/plain; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(("data=" + text).getBytes(StandardCharsets.UTF_8));
+            }
+            consume(connection);
+        }
+
+        @Override
+        protected void doClose() {
+            closed = true;
+            try {
+                consume(get("abort"));
+            } catch (IOException e) {
+                fire("error", e);
+            }
+        }
+
+        // Reads the rest of the response to reuse the connection
+        protected static String consume(HttpURLConnection connection) throws IOException {
+            StringBuilder body = new StringBuilder();
+            try (InputStream in = connection.getInputStream()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                char[] buffer = new char[1024];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    body.append(buffer, 0, read);
+                }
+            }
+            return body.toString();
+        }
+    }
+
+    private static class StreamClient extends HttpClient {
+        StreamClient(String uri) {
+            super(uri, "stream");
+        }
+
+        @Override
+        public void run() {
+            try {
+                HttpURLConnection connection = get("open");
+                try (InputStream in = connection.getInputStream()) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    StringBuilder data = new StringBuilder();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("data: ")) {
+                            if (data.length() > 0) {
+                                data.append('\n');
+                            }
+                            data.append(line.substring("data: ".length()));
+                        } else if (line.isEmpty() && data.length() > 0) {
+                            String message = data.toString();
+                            data.setLength(0);
+                            // The first message is the id of the transport
+                            // and the others are prefixed with 1 for text
+                            if (id == null) {
+                                id = HttpTransportServer.parseQuery(uri + message).get("id");
+                            } else if (message.charAt(0) == '1') {
+                                receive(message.substring(1));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    fire("error", e);
+                }
+            }
+            fire("close", null);
+        }
+    }
+
+    private static class LongpollClient extends HttpClient {
+        LongpollClient(String uri) {
+            super(uri, "longpoll");
+        }
+
+        @Override
+        public void run() {
+            try {
+                id = HttpTransportServer.parseQuery(uri + consume(get("open"))).get("id");
+                while (true) {
+                    String message = consume(get("poll"));
+                    // An empty response means the transport is closed
+                    if (message.isEmpty()) {
+                        break;
+                    }
+                    receive(message);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    fire("error", e);
+                }
+            }
+            fire("close", null);
+        }
+    }
+
+}
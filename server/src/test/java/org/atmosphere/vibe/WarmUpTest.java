@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.atmosphere.vibe.internal.SharedScheduler;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.action.VoidAction;
+import org.atmosphere.vibe.transport.http.HttpTransportServer;
+import org.atmosphere.vibe.transport.websocket.WebSocketTransportServer;
+import org.junit.Test;
+
+public class WarmUpTest {
+
+    @Test
+    public void noLeftoverThreads() throws InterruptedException {
+        // Discards what other tests left on the shared threads
+        SharedScheduler.shutdown();
+        final AtomicBoolean ready = new AtomicBoolean();
+        WarmUp warmUp = new WarmUp();
+        warmUp.setIterations(10);
+        warmUp.onready(new VoidAction() {
+            @Override
+            public void on() {
+                ready.set(true);
+            }
+        });
+        warmUp.run();
+        assertThat(ready.get(), is(true));
+        assertThat(warmUp.failures(), is(0));
+        // Shared threads end once they have nothing to do for a second
+        long deadline = System.currentTimeMillis() + 2500;
+        while (!vibeThreads().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertThat(vibeThreads().toString(), vibeThreads().isEmpty(), is(true));
+    }
+
+    @Test
+    public void exchange() {
+        final AtomicInteger echoes = new AtomicInteger();
+        final AtomicInteger replies = new AtomicInteger();
+        DefaultServer server = new DefaultServer();
+        server.on("echo", new SocketAction<Object>() {
+            @Override
+            public void on(ServerSocket socket, Object data) {
+                echoes.incrementAndGet();
+            }
+        });
+        server.on("reply", new SocketAction<Object>() {
+            @Override
+            public void on(ServerSocket socket, Object data) {
+                replies.incrementAndGet();
+            }
+        });
+        HttpTransportServer httpTransportServer = new HttpTransportServer();
+        WarmUp warmUp = new WarmUp(server, httpTransportServer, new WebSocketTransportServer());
+        warmUp.setIterations(10);
+        try {
+            warmUp.run();
+        } finally {
+            httpTransportServer.close();
+        }
+        // WebSocket, HTTP streaming and HTTP long polling per iteration
+        assertThat(echoes.get(), is(30));
+        assertThat(replies.get(), is(30));
+        assertThat(warmUp.failures(), is(0));
+    }
+
+    @Test
+    public void dispatchExecutor() throws InterruptedException {
+        final AtomicInteger echoes = new AtomicInteger();
+        ExecutorService executor = DispatchExecutors.newFixedExecutor(2);
+        DefaultServer server = new DefaultServer();
+        server.setDispatchExecutor(executor);
+        server.on("echo", new SocketAction<Object>() {
+            @Override
+            public void on(ServerSocket socket, Object data) {
+                echoes.incrementAndGet();
+            }
+        });
+        HttpTransportServer httpTransportServer = new HttpTransportServer();
+        WarmUp warmUp = new WarmUp(server, httpTransportServer, new WebSocketTransportServer());
+        warmUp.setIterations(10);
+        try {
+            // Handlers run on the executor's threads after events are fired
+            warmUp.run();
+        } finally {
+            httpTransportServer.close();
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        assertThat(echoes.get(), is(30));
+        assertThat(warmUp.failures(), is(0));
+    }
+
+    @Test
+    public void failure() {
+        final AtomicBoolean ready = new AtomicBoolean();
+        DefaultServer server = new DefaultServer();
+        HttpTransportServer httpTransportServer = new HttpTransportServer();
+        WarmUp warmUp = new WarmUp(server, httpTransportServer, new WebSocketTransportServer());
+        // Sockets close before they exchange anything
+        server.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.close();
+            }
+        });
+        warmUp.setIterations(10);
+        warmUp.setMaxFailures(3);
+        warmUp.setTimeout(100);
+
+        warmUp.onready(new VoidAction() {
+            @Override
+            public void on() {
+                ready.set(true);
+            }
+        });
+        try {
+            warmUp.run();
+            fail("Warm-up should have stopped");
+        } catch (IllegalStateException e) {
+            assertThat(warmUp.failures(), is(3));
+        } finally {
+            httpTransportServer.close();
+        }
+        assertThat(ready.get(), is(false));
+    }
+
+    private static List<String> vibeThreads() {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("vibe-")) {
+                names.add(thread.getName());
+            }
+        }
+        return names;
+    }
+
+}
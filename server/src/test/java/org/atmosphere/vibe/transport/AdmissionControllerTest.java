@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void rate() {
+        AdmissionController controller = new AdmissionController(1, 2, 10);
+        assertThat(controller.tryAcquire(), is(true));
+        assertThat(controller.tryAcquire(), is(true));
+        assertThat(controller.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void openings() {
+        AdmissionController controller = new AdmissionController(1000000, 100, 1);
+        assertThat(controller.tryAcquire(), is(true));
+        assertThat(controller.tryAcquire(), is(false));
+        controller.release();
+        assertThat(controller.tryAcquire(), is(true));
+    }
+
+}
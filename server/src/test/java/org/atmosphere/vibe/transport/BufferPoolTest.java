@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void write() throws Exception {
+        BufferPool pool = new BufferPool(64, 2);
+        pool.setLeakDetection(true);
+        PooledBuffer buffer = pool.acquire();
+        OutputStream out = buffer.outputStream();
+        out.write("{\"a\":\"\u00e9\"}".getBytes(StandardCharsets.UTF_8));
+        buffer.prepend("data: ".getBytes(StandardCharsets.UTF_8)).append("\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(buffer.text(), is("data: {\"a\":\"\u00e9\"}\n"));
+        assertThat(buffer.buffer().remaining(), is(buffer.text().getBytes(StandardCharsets.UTF_8).length));
+        assertThat(pool.outstanding(), is(1));
+        assertThat(pool.leaks().size(), is(1));
+        buffer.release();
+        buffer.release();
+        assertThat(pool.outstanding(), is(0));
+        assertThat(pool.leaks().size(), is(0));
+    }
+
+    @Test
+    public void grow() throws Exception {
+        BufferPool pool = new BufferPool(32, 2);
+        PooledBuffer buffer = pool.acquire();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append(i);
+        }
+        buffer.outputStream().write(text.toString().getBytes(StandardCharsets.UTF_8));
+        assertThat(buffer.text(), is(text.toString()));
+        buffer.release();
+        assertThat(pool.outstanding(), is(0));
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class PriorityQueuesTest {
+
+    @Test
+    public void order() {
+        PriorityQueues<String> queues = new PriorityQueues<>();
+        for (int i = 0; i < 8; i++) {
+            queues.offer("b" + i, Priority.BULK);
+        }
+        for (int i = 0; i < 8; i++) {
+            queues.offer("i" + i, Priority.INTERACTIVE);
+        }
+        queues.offer("c", Priority.CONTROL);
+        StringBuilder order = new StringBuilder();
+        String element;
+        while ((element = queues.poll()) != null) {
+            order.append(element).append(' ');
+        }
+        assertThat(order.toString(), is("c i0 i1 i2 b0 i3 i4 i5 b1 i6 i7 b2 b3 b4 b5 b6 b7 "));
+        assertThat(queues.isEmpty(), is(true));
+        assertThat(queues.poll(), nullValue());
+    }
+
+}
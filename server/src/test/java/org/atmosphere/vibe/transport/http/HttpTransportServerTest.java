@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport.http;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.atmosphere.vibe.DefaultServer;
+import org.atmosphere.vibe.ServerSocket;
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.http.HttpStatus;
+import org.atmosphere.vibe.platform.http.ServerHttpExchange;
+import org.atmosphere.vibe.transport.BufferPool;
+import org.atmosphere.vibe.transport.PooledBuffer;
+import org.junit.Test;
+
+public class HttpTransportServerTest {
+
+    private static final String EVENT = "{\"id\":\"1\",\"type\":\"message\",\"data\":\"hi\",\"reply\":false}";
+    private DefaultServer defaultServer;
+
+    @Test
+    public void longpollReleasesOnFinish() {
+        BufferPool pool = new BufferPool();
+        HttpTransportServer server = server(pool);
+        Exchange open = Exchange.get("transport=longpoll&when=open");
+        server.on(open.proxy);
+        String id = open.text().substring("?id=".length());
+        // The handshake is cached until the first poll
+        server.on(Exchange.get("transport=longpoll&when=poll&id=" + id).proxy);
+        Exchange poll = Exchange.get("transport=longpoll&when=poll&id=" + id);
+        server.on(poll.proxy);
+        assertThat(poll.ended, is(false));
+        defaultServer.all().send("message", "a");
+        assertThat(poll.ended, is(true));
+        // The platform may still be writing the buffer
+        assertThat(pool.outstanding(), is(1));
+        poll.fire("onfinish", null);
+        assertThat(pool.outstanding(), is(0));
+        server.close();
+    }
+
+    @Test
+    public void streamWritesCopy() {
+        BufferPool pool = new BufferPool();
+        HttpTransportServer server = server(pool);
+        Exchange stream = Exchange.get("transport=stream&when=open");
+        server.on(stream.proxy);
+        defaultServer.all().send("message", "a");
+        assertThat(pool.outstanding(), is(0));
+        ByteBuffer written = (ByteBuffer) stream.written.get(stream.written.size() - 1);
+        String text = StandardCharsets.UTF_8.decode(written.duplicate()).toString();
+        // Reusing the released buffer doesn't affect what's being written
+        PooledBuffer reused = pool.acquire();
+        reused.append(new byte[256]);
+        assertThat(StandardCharsets.UTF_8.decode(written.duplicate()).toString(), is(text));
+        assertThat(text.startsWith("data: 1{"), is(true));
+        assertThat(text.endsWith("}\n\n"), is(true));
+        reused.release();
+    }
+
+    @Test
+    public void deliverChunkedMessage() {
+        HttpTransportServer server = server(null);
+        server.setMaxMessageSize(EVENT.length());
+        List<Object> events = record();
+        Exchange stream = open(server);
+        Exchange post = Exchange.post("transport=stream&id=" + id(stream), "text/plain; charset=utf-8");
+        server.on(post.proxy);
+        post.fire("onchunk", "data=" + EVENT.substring(0, 10));
+        post.fire("onchunk", EVENT.substring(10));
+        post.fire("onend", null);
+        assertThat(post.status, is((Object) null));
+        assertThat(post.ended, is(true));
+        assertThat(events, is((Object) Arrays.<Object> asList("hi")));
+        assertThat(stream.ended, is(false));
+    }
+
+    @Test
+    public void rejectOversizedChunks() {
+        HttpTransportServer server = server(null);
+        server.setMaxMessageSize(EVENT.length() - 1);
+        List<Object> events = record();
+        Exchange stream = open(server);
+        Exchange post = Exchange.post("transport=stream&id=" + id(stream), "text/plain; charset=utf-8");
+        server.on(post.proxy);
+        post.fire("onchunk", "data=" + EVENT.substring(0, 10));
+        assertThat(post.ended, is(false));
+        // It responds as soon as the limit is exceeded
+        post.fire("onchunk", EVENT.substring(10));
+        assertThat(post.ended, is(true));
+        assertThat(((HttpStatus) post.status).code(), is(413));
+        post.fire("onchunk", "ignored");
+        post.fire("onend", null);
+        // The transport is closed as the message is lost
+        assertThat(events, is((Object) Arrays.<Object> asList("error")));
+        assertThat(stream.ended, is(true));
+    }
+
+    @Test
+    public void rejectOversizedContentLength() {
+        HttpTransportServer server = server(null);
+        server.setMaxMessageSize(16);
+        List<Object> events = record();
+        Exchange stream = open(server);
+        Exchange post = Exchange.post("transport=stream&id=" + id(stream), "application/octet-stream");
+        post.headers.put("content-length", "17");
+        server.on(post.proxy);
+        // The body is not read at all
+        assertThat(post.actions.containsKey("onchunk"), is(false));
+        assertThat(((HttpStatus) post.status).code(), is(413));
+        assertThat(events, is((Object) Arrays.<Object> asList("error")));
+        assertThat(stream.ended, is(true));
+    }
+
+    // Opens a streaming transport and returns its exchange
+    private static Exchange open(HttpTransportServer server) {
+        Exchange stream = Exchange.get("transport=stream&when=open");
+        server.on(stream.proxy);
+        return stream;
+    }
+
+    // The transport's handshake is written first and the socket's follows
+    private static String id(Exchange stream) {
+        String text = (String) stream.written.get(0);
+        return HttpTransportServer.parseQuery(text.substring(text.indexOf("?")).trim()).get("id");
+    }
+
+    // Records data of message events and error events of sockets
+    private List<Object> record() {
+        final List<Object> events = new ArrayList<>();
+        defaultServer.onsocket(new Action<ServerSocket>() {
+            @Override
+            public void on(ServerSocket socket) {
+                socket.on("message", new Action<Object>() {
+                    @Override
+                    public void on(Object data) {
+                        events.add(data);
+                    }
+                })
+                .on("error", new Action<Throwable>() {
+                    @Override
+                    public void on(Throwable throwable) {
+                        events.add("error");
+                    }
+                });
+            }
+        });
+        return events;
+    }
+
+    private HttpTransportServer server(BufferPool pool) {
+        defaultServer = new DefaultServer();
+        defaultServer.setBufferPool(pool);
+        return new HttpTransportServer().ontransport(defaultServer);
+    }
+
+    /**
+     * A fake exchange recording what is written and keeping actions to be
+     * fired by tests.
+     */
+    static class Exchange implements InvocationHandler {
+        final String method;
+        final String uri;
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, List<Action<Object>>> actions = new HashMap<>();
+        final List<Object> written = new ArrayList<>();
+        final ServerHttpExchange proxy;
+        Object status;
+        boolean ended;
+
+        Exchange(String method, String query) {
+            this.method = method;
+            this.uri = "http://localhost/vibe?" + query;
+            this.proxy = (ServerHttpExchange) Proxy.newProxyInstance(ServerHttpExchange.class.getClassLoader(),
+                new Class<?>[] { ServerHttpExchange.class }, this);
+        }
+
+        static Exchange get(String query) {
+            return new Exchange("GET", query);
+        }
+
+        static Exchange post(String query, String contentType) {
+            Exchange exchange = new Exchange("POST", query);
+            exchange.headers.put("content-type", contentType);
+            return exchange;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            String name = m.getName();
+            switch (name) {
+            case "uri":
+                return uri;
+            case "method":
+                return method;
+            case "header":
+                return headers.get(((String) args[0]).toLowerCase());
+            case "setStatus":
+                status = args[0];
+                break;
+            case "write":
+                written.add(args[0]);
+                break;
+            case "end":
+                if (args != null && args.length > 0) {
+                    written.add(args[0]);
+                }
+                ended = true;
+                break;
+            case "toString":
+                return "Exchange@" + uri;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                if (name.startsWith("on") && args != null && args.length == 1 && args[0] instanceof Action) {
+                    List<Action<Object>> list = actions.get(name);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        actions.put(name, list);
+                    }
+                    list.add((Action<Object>) args[0]);
+                }
+                break;
+            }
+            return m.getReturnType().isInstance(proxy) ? proxy : null;
+        }
+
+        void fire(String name, Object data) {
+            List<Action<Object>> list = actions.get(name);
+            if (list != null) {
+                for (Action<Object> action : new ArrayList<>(list)) {
+                    action.on(data);
+                }
+            }
+        }
+
+        // The last text written
+        String text() {
+            Object last = written.get(written.size() - 1);
+            return last instanceof ByteBuffer ? StandardCharsets.UTF_8.decode(((ByteBuffer) last).duplicate()).toString() : (String) last;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 The Vibe Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atmosphere.vibe.transport.websocket;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.atmosphere.vibe.platform.action.Action;
+import org.atmosphere.vibe.platform.websocket.ServerWebSocket;
+import org.atmosphere.vibe.transport.ServerTransport;
+import org.junit.Test;
+
+public class WebSocketTransportServerTest {
+
+    @Test
+    public void concurrentSends() throws Exception {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger writing = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final ServerTransport transport = transport(new WebSocket() {
+            @Override
+            void send(String data) {
+                if (writing.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                Thread.yield();
+                written.add(data);
+                writing.decrementAndGet();
+            }
+        });
+        int threads = 8;
+        final int messages = 500;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++) {
+                        transport.send(thread + ":" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        // Every frame is written by one thread at a time in order per sender
+        assertThat(overlapped.get(), is(false));
+        assertThat(written.size(), is(threads * messages));
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        for (String text : written) {
+            String[] parts = text.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            int i = Integer.parseInt(parts[1]);
+            assertThat(i, is(last[thread] + 1));
+            last[thread] = i;
+        }
+    }
+
+    @Test
+    public void closeAfterQueued() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ServerTransport transport = transport(new WebSocket() {
+            @Override
+            void send(String data) {
+                if (data.equals("a")) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                calls.add(data);
+            }
+
+            @Override
+            void close() {
+                calls.add("close");
+            }
+        });
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                transport.send("a");
+            }
+        });
+        thread.start();
+        assertThat(writing.await(3, TimeUnit.SECONDS), is(true));
+        // Neither waits for the thread writing a
+        transport.send("b");
+        transport.close();
+        assertThat(calls.isEmpty(), is(true));
+        release.countDown();
+        thread.join(3000);
+        assertThat(calls, is((Object) Arrays.asList("a", "b", "close")));
+    }
+
+    private static ServerTransport transport(WebSocket ws) {
+        final AtomicReference<ServerTransport> ref = new AtomicReference<>();
+        WebSocketTransportServer server = new WebSocketTransportServer();
+        server.ontransport(new Action<ServerTransport>() {
+            @Override
+            public void on(ServerTransport transport) {
+                ref.set(transport);
+            }
+        });
+        server.on(ws.proxy);
+        return ref.get();
+    }
+
+    /**
+     * A fake WebSocket whose writes and close are overridden by tests.
+     */
+    static class WebSocket implements InvocationHandler {
+        final ServerWebSocket proxy = (ServerWebSocket) Proxy.newProxyInstance(ServerWebSocket.class.getClassLoader(),
+            new Class<?>[] { ServerWebSocket.class }, this);
+
+        void send(String data) {}
+
+        void close() {}
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            switch (m.getName()) {
+            case "uri":
+                return "ws://localhost/vibe";
+            case "send":
+                if (args[0] instanceof String) {
+                    send((String) args[0]);
+                }
+                break;
+            case "close":
+                close();
+                break;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "WebSocket";
+            default:
+                break;
+            }
+            return m.getReturnType().isInstance(proxy) ? proxy : null;
+        }
+    }
+
+}